@@ -1,6 +1,5 @@
 var StreamingPlayer = require("FuseJS/StreamingPlayer");
 var Observable = require('FuseJS/Observable');
-var Timer = require("FuseJS/Timer");
 
 //-------------------------------
 
@@ -9,22 +8,13 @@ var isInteracting = false;
 var duration = Observable(0.0);
 var sliderValue = Observable(0.0);
 var endInteractionTimeout = null;
-var timer = null;
 
-function deleteTimer(){
-	if (timer !== null)
-		Timer.delete(timer);
-}
-
-function createNewTimer() {
-	deleteTimer();
-	timer = Timer.create(function() {
-		if (!isInteracting) {
-			duration.value = StreamingPlayer.duration;
-			progress.value = StreamingPlayer.progress;
-		}
-	}, 100, true);
-}
+StreamingPlayer.on("progressChanged", function(newProgress, newDuration) {
+	if (!isInteracting) {
+		duration.value = newDuration;
+		progress.value = newProgress;
+	}
+});
 
 //-------------------------------
 
@@ -54,8 +44,6 @@ sliderValue.onValueChanged(module, function(val) {
 		progress.value = (val * duration.value);;
 });
 
-timer = createNewTimer();
-
 module.exports = {
 	seekToSliderValue : seekToSliderValue,
 	interacting : interacting,
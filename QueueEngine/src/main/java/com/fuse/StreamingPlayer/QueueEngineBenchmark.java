@@ -0,0 +1,185 @@
+package com.fuse.StreamingPlayer;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Navigation, SetPlaylist and history churn against playlists of 100, 10k and 1M tracks.
+ *
+ * Each benchmark does what the service does for one user action, so the numbers are the
+ * cost of a tap on next/back or of the app handing us a new playlist.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class QueueEngineBenchmark
+{
+    @Param({"100", "10000", "1000000"})
+    int Tracks;
+
+    private QueueEngine _queue;
+    private int[] _playlist;
+    private int[] _otherPlaylist;
+    private boolean _usingOther;
+    private int _released;
+
+    @Setup(Level.Trial)
+    public void SetUpTracks()
+    {
+        // The second playlist shares half its tracks with the first, like a re-sorted or
+        // re-filtered list would
+        _playlist = new int[Tracks];
+        _otherPlaylist = new int[Tracks];
+        for (int i = 0; i < Tracks; i++)
+        {
+            _playlist[i] = i;
+            _otherPlaylist[i] = i % 2 == 0 ? i : Tracks + i;
+        }
+    }
+
+    @Setup(Level.Iteration)
+    public void SetUpQueue()
+    {
+        _queue = new QueueEngine(new QueueEngine.Listener()
+        {
+            @Override
+            public void OnTrackReleased(int uid)
+            {
+                _released++;
+            }
+        });
+        _usingOther = false;
+        _queue.SetPlaylist(_playlist, _playlist.length, -1);
+        _queue.SetCurrentPlaylistTrack(_playlist[0]);
+        _queue.CurrentTrackChanged(_playlist[0]);
+    }
+
+    //--------------------------
+    // Navigation
+
+    @Benchmark
+    public int Next()
+    {
+        int uid = _queue.MoveToNextPlaylistTrack();
+        if (uid < 0)
+        {
+            uid = _queue.SetCurrentPlaylistTrack(_playlist[0]);
+        }
+        _queue.CurrentTrackChanged(uid);
+        return uid;
+    }
+
+    @Benchmark
+    public int Previous()
+    {
+        int uid = _queue.MoveToPrevPlaylistTrack();
+        if (uid < 0)
+        {
+            uid = _queue.SetCurrentPlaylistTrack(_playlist[_playlist.length - 1]);
+        }
+        _queue.CurrentTrackChanged(uid);
+        return uid;
+    }
+
+    // Back into history and forward out of it again. Only the first call of an
+    // iteration has to build up the history.
+    @Benchmark
+    public int BackAndForward()
+    {
+        if (_queue.HistorySize() == 0)
+        {
+            _queue.CurrentTrackChanged(_queue.MoveToNextPlaylistTrack());
+        }
+        int back = _queue.MoveBackInHistory();
+        _queue.CurrentTrackChanged(back);
+        int forward = _queue.MoveForwardInHistory();
+        _queue.CurrentTrackChanged(forward);
+        return back + forward;
+    }
+
+    // Jumping around the playlist with a full history, so every jump pushes one uid
+    // and evicts the oldest.
+    @Benchmark
+    public int SwitchTrack()
+    {
+        int index = (_queue.PlaylistIndex() + Tracks / 2 + 1) % Tracks;
+        int uid = _queue.SetCurrentPlaylistTrack(_playlist[index]);
+        _queue.CurrentTrackChanged(uid);
+        return uid;
+    }
+
+    //--------------------------
+    // Shuffle. Turning it on should cost the same at every size.
+
+    @Benchmark
+    public int ToggleShuffle()
+    {
+        _queue.SetShuffle(!_queue.IsShuffled(), _released + Tracks);
+        return _queue.ShuffleStart();
+    }
+
+    @Benchmark
+    public int ShuffledNext()
+    {
+        if (!_queue.IsShuffled())
+        {
+            _queue.SetShuffle(true, 1);
+        }
+        return Next();
+    }
+
+    //--------------------------
+    // History churn: going back a few steps and then branching off drops the future
+
+    @Benchmark
+    public int BranchFromHistory()
+    {
+        for (int i = 0; i < 4; i++)
+        {
+            Next();
+        }
+        _queue.CurrentTrackChanged(_queue.MoveBackInHistory());
+        _queue.CurrentTrackChanged(_queue.MoveBackInHistory());
+        Next();
+        return _queue.HistorySize();
+    }
+
+    @Benchmark
+    public int ClearHistory()
+    {
+        _queue.ClearHistory();
+        for (int i = 0; i < 16; i++)
+        {
+            _queue.SetCurrentPlaylistTrack(_playlist[(i * 7) % Tracks]);
+        }
+        return _released;
+    }
+
+    //--------------------------
+    // Changing the playlist
+
+    @Benchmark
+    public int SetPlaylist()
+    {
+        _usingOther = !_usingOther;
+        int[] next = _usingOther ? _otherPlaylist : _playlist;
+        int current = _queue.PlaylistGet(Math.max(0, _queue.PlaylistIndex()));
+        _queue.SetPlaylist(next, next.length, current);
+        return _queue.PlaylistIndex();
+    }
+}
@@ -0,0 +1,117 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Random pushes, pops & capacity changes checked against a plain list, most recent first
+public class HistoryTest
+{
+    static final int STEPS = 20000;
+
+    private static void AssertSame(List<Integer> model, History history)
+    {
+        assertEquals(model.size(), history.Size());
+        for (int n = 0; n < model.size(); n++)
+        {
+            assertEquals(model.get(n).intValue(), history.PeekNth(n));
+        }
+    }
+
+    @Test
+    public void MatchesAListAcrossWrapsAndCapacityChanges()
+    {
+        for (int seed = 0; seed < 5; seed++)
+        {
+            Random random = new Random(seed);
+            History history = new History(1 + random.nextInt(8));
+            List<Integer> model = new ArrayList<>();
+            for (int step = 0; step < STEPS; step++)
+            {
+                switch (random.nextInt(10))
+                {
+                    case 0:
+                    case 1:
+                    case 2:
+                    case 3:
+                    case 4:
+                    {
+                        // What QueueEngine does when it is full
+                        if (history.IsFull())
+                        {
+                            assertEquals(model.remove(model.size() - 1).intValue(), history.RemoveOldest());
+                        }
+                        history.Push(step);
+                        model.add(0, step);
+                        break;
+                    }
+                    case 5:
+                    case 6:
+                        if (model.size() > 0)
+                        {
+                            assertEquals(model.remove(0).intValue(), history.Pop());
+                        }
+                        break;
+                    case 7:
+                        if (model.size() > 0)
+                        {
+                            assertEquals(model.remove(model.size() - 1).intValue(), history.RemoveOldest());
+                        }
+                        break;
+                    case 8:
+                    {
+                        int capacity = 1 + random.nextInt(12);
+                        while (model.size() > capacity)
+                        {
+                            assertEquals(model.remove(model.size() - 1).intValue(), history.RemoveOldest());
+                        }
+                        history.SetCapacity(capacity);
+                        assertEquals(capacity, history.Capacity());
+                        break;
+                    }
+                    default:
+                        if (random.nextInt(100) == 0)
+                        {
+                            history.Clear();
+                            model.clear();
+                        }
+                        break;
+                }
+                AssertSame(model, history);
+                assertEquals(model.size() == history.Capacity(), history.IsFull());
+            }
+        }
+    }
+
+    // The queue keeps the most recent entries when the depth shrinks, and lets go of the rest
+    @Test
+    public void ShrinkingTheQueueDepthReleasesTheOldest()
+    {
+        final List<Integer> released = new ArrayList<>();
+        QueueEngine queue = new QueueEngine(new QueueEngine.Listener()
+        {
+            @Override
+            public void OnTrackReleased(int uid)
+            {
+                released.add(uid);
+            }
+        }, 10);
+        int[] history = { 9, 8, 7, 6, 5, 4, 3, 2, 1, 0 };
+        queue.Restore(new int[0], 0, history, history.length, 10, -1, 7);
+
+        queue.SetHistoryDepth(3);
+        assertEquals(3, queue.HistorySize());
+        assertEquals(9, queue.HistoryPeekNth(0));
+        assertEquals(7, queue.HistoryPeekNth(2));
+        assertEquals(2, queue.HistoryIndex());
+        assertEquals(7, released.size());
+
+        queue.SetHistoryDepth(5);
+        assertEquals(3, queue.HistorySize());
+        assertEquals(5, queue.HistoryDepth());
+    }
+}
@@ -0,0 +1,121 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Random changes checked against a HashMap after every step
+public class IntIntMapTest
+{
+    static final int STEPS = 20000;
+
+    private void Run(long seed, int keyRange)
+    {
+        Random random = new Random(seed);
+        IntIntMap map = new IntIntMap();
+        Map<Integer, Integer> model = new HashMap<>();
+        for (int step = 0; step < STEPS; step++)
+        {
+            // Negative keys too, anything but Integer.MIN_VALUE is allowed
+            int key = random.nextInt(keyRange) - keyRange / 2;
+            switch (random.nextInt(8))
+            {
+                case 0:
+                case 1:
+                case 2:
+                {
+                    int value = random.nextInt();
+                    map.Put(key, value);
+                    model.put(key, value);
+                    break;
+                }
+                case 3:
+                {
+                    int delta = random.nextInt(5) - 2;
+                    Integer old = model.get(key);
+                    int expected = (old == null ? 0 : old) + delta;
+                    model.put(key, expected);
+                    assertEquals(expected, map.Add(key, delta));
+                    break;
+                }
+                case 4:
+                case 5:
+                    assertEquals(model.remove(key) != null, map.Remove(key));
+                    break;
+                case 6:
+                    if (random.nextInt(500) == 0)
+                    {
+                        map.Clear();
+                        model.clear();
+                    }
+                    break;
+                default:
+                    break;
+            }
+
+            assertEquals(model.size(), map.Size());
+            assertEquals(model.containsKey(key), map.ContainsKey(key));
+            Integer expected = model.get(key);
+            assertEquals(expected == null ? -1 : expected.intValue(), map.Get(key, -1));
+            if (step % 1000 == 0)
+            {
+                for (Map.Entry<Integer, Integer> entry : model.entrySet())
+                {
+                    assertEquals(entry.getValue().intValue(), map.Get(entry.getKey(), -1));
+                }
+            }
+        }
+    }
+
+    // A small key range keeps the table crowded, so removals shift long probe chains
+    @Test
+    public void MatchesAHashMapWithFewKeys()
+    {
+        for (int seed = 0; seed < 5; seed++)
+        {
+            Run(seed, 40);
+        }
+    }
+
+    @Test
+    public void MatchesAHashMapWithManyKeys()
+    {
+        for (int seed = 0; seed < 5; seed++)
+        {
+            Run(seed, 5000);
+        }
+    }
+
+    // Keys that land in the same home slot wrap around the end of the table
+    @Test
+    public void RemovingFromAWrappedProbeChain()
+    {
+        IntIntMap map = new IntIntMap();
+        Map<Integer, Integer> model = new HashMap<>();
+        int added = 0;
+        for (int key = 0; added < 6; key++)
+        {
+            int h = key * 0x9E3779B9;
+            if (((h ^ (h >>> 16)) & 15) == 15)
+            {
+                map.Put(key, key);
+                model.put(key, key);
+                added++;
+            }
+        }
+        for (Integer key : model.keySet().toArray(new Integer[0]))
+        {
+            map.Remove(key);
+            model.remove(key);
+            for (Map.Entry<Integer, Integer> entry : model.entrySet())
+            {
+                assertEquals(entry.getValue().intValue(), map.Get(entry.getKey(), -1));
+            }
+        }
+        assertEquals(0, map.Size());
+    }
+}
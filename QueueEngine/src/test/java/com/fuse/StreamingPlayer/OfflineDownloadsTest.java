@@ -0,0 +1,329 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+public class OfflineDownloadsTest
+{
+    static final int CHUNK = OfflineDownloads.CHUNK_SIZE;
+    static final int TIMEOUT_SECONDS = 20;
+
+    @Rule
+    public TemporaryFolder _folder = new TemporaryFolder();
+
+    // The origin. It serves ranges and can be told to fail or hold back some of them.
+    private final byte[] _data = new byte[3 * CHUNK + CHUNK / 2];
+    private HttpServer _server;
+    private String _url;
+    private final List<Long> _rangeStarts = new ArrayList<>();
+    private final AtomicInteger _active = new AtomicInteger();
+    private final AtomicInteger _maxActive = new AtomicInteger();
+    private volatile long _failFrom = Long.MAX_VALUE; // ranges starting here or later get 500
+    private volatile int _delayMs = 0;
+    private volatile boolean _hideTotal = false; // Content-Range ends in "/*"
+    private volatile CountDownLatch _gate = new CountDownLatch(0); // held ranges wait on this
+    private final Semaphore _held = new Semaphore(0);
+
+    private PlaybackMetrics _metrics;
+    private OfflineDownloads _downloads;
+    private final LinkedBlockingQueue<Boolean> _finished = new LinkedBlockingQueue<>();
+
+    @Before
+    public void SetUp() throws IOException
+    {
+        new Random(1).nextBytes(_data);
+        _server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 16);
+        _server.setExecutor(Executors.newCachedThreadPool());
+        _server.createContext("/", new HttpHandler()
+        {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException
+            {
+                int active = _active.incrementAndGet();
+                while (true)
+                {
+                    int max = _maxActive.get();
+                    if (active <= max || _maxActive.compareAndSet(max, active))
+                        break;
+                }
+                try
+                {
+                    Serve(exchange);
+                }
+                finally
+                {
+                    _active.decrementAndGet();
+                    exchange.close();
+                }
+            }
+        });
+        _server.start();
+        _url = "http://127.0.0.1:" + _server.getAddress().getPort() + "/track.mp3";
+
+        _metrics = new PlaybackMetrics();
+        _downloads = new OfflineDownloads(_folder.newFolder("downloads"), Executors.defaultThreadFactory(), _metrics,
+                new OfflineDownloads.Listener()
+                {
+                    @Override
+                    public void OnDownloadProgress(String url, long downloadedBytes, long totalBytes)
+                    {
+                    }
+
+                    @Override
+                    public void OnDownloadFinished(String url, boolean succeeded)
+                    {
+                        _finished.add(succeeded);
+                    }
+                });
+    }
+
+    @After
+    public void TearDown()
+    {
+        _gate.countDown();
+        _downloads.Shutdown();
+        _server.stop(0);
+    }
+
+    private void Serve(HttpExchange exchange) throws IOException
+    {
+        String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range == null)
+        {
+            synchronized (_rangeStarts)
+            {
+                _rangeStarts.add(-1L);
+            }
+            exchange.sendResponseHeaders(200, _data.length);
+            OutputStream body = exchange.getResponseBody();
+            body.write(_data);
+            body.close();
+            return;
+        }
+        String[] bounds = range.substring("bytes=".length()).split("-");
+        long start = Long.parseLong(bounds[0]);
+        long end = Math.min(Long.parseLong(bounds[1]), _data.length - 1);
+        synchronized (_rangeStarts)
+        {
+            _rangeStarts.add(start);
+        }
+
+        if (start > 0 && _gate.getCount() > 0)
+        {
+            _held.release();
+            try
+            {
+                _gate.await();
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+        if (_delayMs > 0)
+        {
+            try
+            {
+                Thread.sleep(_delayMs);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+        }
+        if (start >= _failFrom)
+        {
+            exchange.sendResponseHeaders(500, -1);
+            return;
+        }
+
+        exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + (_hideTotal ? "*" : Integer.toString(_data.length)));
+        exchange.sendResponseHeaders(206, end - start + 1);
+        OutputStream body = exchange.getResponseBody();
+        body.write(_data, (int)start, (int)(end - start + 1));
+        body.close();
+    }
+
+    private List<Long> TakeRangeStarts()
+    {
+        synchronized (_rangeStarts)
+        {
+            List<Long> starts = new ArrayList<>(_rangeStarts);
+            _rangeStarts.clear();
+            return starts;
+        }
+    }
+
+    // Lets the chunks of a failed or cancelled download run out before we count requests
+    private void AwaitIdle() throws InterruptedException
+    {
+        Thread.sleep(200);
+        while (_active.get() > 0)
+        {
+            Thread.sleep(20);
+        }
+    }
+
+    private boolean AwaitFinished() throws InterruptedException
+    {
+        Boolean succeeded = _finished.poll(TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        assertNotNull("download did not finish", succeeded);
+        return succeeded;
+    }
+
+    private void AssertDownloaded() throws IOException
+    {
+        File file = _downloads.GetFile(_url);
+        assertNotNull(file);
+        assertArrayEquals(_data, Files.readAllBytes(file.toPath()));
+    }
+
+    //--------------------------
+
+    @Test
+    public void DownloadsChunksConcurrently() throws Exception
+    {
+        _delayMs = 100;
+        _downloads.SetConcurrency(3);
+        _downloads.Download(_url);
+
+        assertTrue(AwaitFinished());
+        AssertDownloaded();
+        assertEquals(4, TakeRangeStarts().size());
+        // The first chunk goes alone to find the length, the other three go together
+        assertEquals(3, _maxActive.get());
+    }
+
+    @Test
+    public void ConcurrencyLimitHolds() throws Exception
+    {
+        _delayMs = 100;
+        _downloads.SetConcurrency(2);
+        _downloads.Download(_url);
+
+        assertTrue(AwaitFinished());
+        AssertDownloaded();
+        assertEquals(2, _maxActive.get());
+    }
+
+    @Test
+    public void ResumesFromPartAndMeta() throws Exception
+    {
+        _failFrom = 2L * CHUNK;
+        _downloads.Download(_url);
+        assertFalse(AwaitFinished());
+        assertNull(_downloads.GetFile(_url));
+        AwaitIdle();
+        TakeRangeStarts();
+
+        _failFrom = Long.MAX_VALUE;
+        _downloads.Download(_url);
+        assertTrue(AwaitFinished());
+        AssertDownloaded();
+
+        // Only the chunks that failed are fetched again
+        List<Long> starts = TakeRangeStarts();
+        assertEquals(2, starts.size());
+        assertTrue(starts.contains(2L * CHUNK));
+        assertTrue(starts.contains(3L * CHUNK));
+        assertEquals(1, _metrics.Get("download.resumed"), 0);
+    }
+
+    @Test
+    public void CancelStopsWithoutFinishingAndKeepsProgress() throws Exception
+    {
+        _gate = new CountDownLatch(1);
+        _downloads.Download(_url);
+
+        // The first chunk is in, the rest are waiting on the origin
+        assertTrue(_held.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+        _downloads.Cancel(_url);
+        _gate.countDown();
+
+        assertNull(_finished.poll(1, TimeUnit.SECONDS));
+        assertNull(_downloads.GetFile(_url));
+        assertEquals(1, _metrics.Get("download.cancelled"), 0);
+        TakeRangeStarts();
+
+        _downloads.Download(_url);
+        assertTrue(AwaitFinished());
+        AssertDownloaded();
+        assertFalse(TakeRangeStarts().contains(0L));
+        assertEquals(1, _metrics.Get("download.resumed"), 0);
+    }
+
+    @Test
+    public void CancelAndDownloadAgainFinishesOnce() throws Exception
+    {
+        _gate = new CountDownLatch(1);
+        _downloads.Download(_url);
+        assertTrue(_held.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        // The chunks of the cancelled download are still out when the new one starts
+        _downloads.Cancel(_url);
+        _downloads.Download(_url);
+        _gate.countDown();
+
+        assertTrue(AwaitFinished());
+        AssertDownloaded();
+        assertNull(_finished.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void RemoveWhileChunksAreRunningLeavesNothingBehind() throws Exception
+    {
+        _gate = new CountDownLatch(1);
+        _downloads.Download(_url);
+        assertTrue(_held.tryAcquire(TIMEOUT_SECONDS, TimeUnit.SECONDS));
+
+        _downloads.Remove(_url);
+        _gate.countDown();
+        AwaitIdle();
+
+        assertNull(_finished.poll(1, TimeUnit.SECONDS));
+        assertArrayEquals(new String[0], _folder.getRoot().toPath().resolve("downloads").toFile().list());
+    }
+
+    @Test
+    public void UnknownTotalFallsBackToOneStream() throws Exception
+    {
+        _hideTotal = true;
+        _downloads.Download(_url);
+
+        assertTrue(AwaitFinished());
+        AssertDownloaded();
+        List<Long> starts = TakeRangeStarts();
+        assertEquals(2, starts.size());
+        assertEquals(Long.valueOf(-1), starts.get(1));
+        assertEquals(1, _metrics.Get("download.unknownLength"), 0);
+    }
+}
@@ -0,0 +1,158 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.Test;
+
+// Random changes checked against a plain ArrayList after every step
+public class PlaylistTest
+{
+    static final int STEPS = 5000;
+
+    private final Playlist _playlist = new Playlist();
+    private final List<Integer> _model = new ArrayList<>();
+    private final Random _probe = new Random(0);
+
+    private void AssertSame(int uidRange)
+    {
+        assertEquals(_model.size(), _playlist.Size());
+        for (int i = 0; i < _model.size(); i++)
+        {
+            assertEquals(_model.get(i).intValue(), _playlist.Get(i));
+        }
+        for (int uid : _model)
+        {
+            AssertIndexOf(uid);
+        }
+        // and some that are most likely not in it
+        for (int i = 0; i < 5; i++)
+        {
+            AssertIndexOf(_probe.nextInt(uidRange));
+        }
+    }
+
+    private void AssertIndexOf(int uid)
+    {
+        assertEquals("IndexOf(" + uid + ")", _model.indexOf(uid), _playlist.IndexOf(uid));
+        assertEquals(_model.contains(uid), _playlist.Contains(uid));
+    }
+
+    private int[] RandomUIDs(Random random, int count, int uidRange)
+    {
+        int[] uids = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            uids[i] = random.nextInt(uidRange);
+        }
+        return uids;
+    }
+
+    // With few uids to pick from the playlist keeps running into duplicates, and with
+    // many it mostly stays on the incremental path
+    private void Run(long seed, int uidRange)
+    {
+        Random random = new Random(seed);
+        _playlist.Clear();
+        _model.clear();
+        for (int step = 0; step < STEPS; step++)
+        {
+            int size = _model.size();
+            switch (random.nextInt(size > 200 ? 7 : 5))
+            {
+                case 0:
+                case 1:
+                {
+                    int index = random.nextInt(size + 1);
+                    int[] uids = RandomUIDs(random, 1 + random.nextInt(4), uidRange);
+                    _playlist.Insert(index, uids, uids.length);
+                    for (int i = 0; i < uids.length; i++)
+                    {
+                        _model.add(index + i, uids[i]);
+                    }
+                    break;
+                }
+                case 2:
+                {
+                    if (size == 0)
+                        break;
+                    int index = random.nextInt(size);
+                    int count = 1 + random.nextInt(4);
+                    _playlist.Remove(index, count);
+                    for (int i = 0; i < count && index < _model.size(); i++)
+                    {
+                        _model.remove(index);
+                    }
+                    break;
+                }
+                case 3:
+                {
+                    if (size == 0)
+                        break;
+                    int from = random.nextInt(size);
+                    int to = random.nextInt(size);
+                    _playlist.Move(from, to);
+                    _model.add(to, _model.remove(from));
+                    break;
+                }
+                case 4:
+                {
+                    if (random.nextInt(50) != 0)
+                        break;
+                    int[] uids = RandomUIDs(random, random.nextInt(20), uidRange);
+                    _playlist.Set(uids, uids.length);
+                    _model.clear();
+                    for (int uid : uids)
+                    {
+                        _model.add(uid);
+                    }
+                    break;
+                }
+                default:
+                {
+                    // Keeps the size in check
+                    int count = size / 2;
+                    _playlist.Remove(0, count);
+                    _model.subList(0, count).clear();
+                    break;
+                }
+            }
+            AssertSame(uidRange);
+        }
+    }
+
+    @Test
+    public void MatchesAListWithDuplicates()
+    {
+        for (int seed = 0; seed < 5; seed++)
+        {
+            Run(seed, 30);
+        }
+    }
+
+    @Test
+    public void MatchesAListWithMostlyUniqueUIDs()
+    {
+        for (int seed = 0; seed < 5; seed++)
+        {
+            Run(seed, 1000000);
+        }
+    }
+
+    // Once the duplicates are gone again the index is still right
+    @Test
+    public void RemovingTheDuplicateKeepsTheIndex()
+    {
+        _playlist.Set(new int[] { 1, 2, 3, 2 }, 4);
+        assertEquals(1, _playlist.IndexOf(2));
+        _playlist.Remove(1, 1);
+        assertEquals(2, _playlist.IndexOf(2));
+        _playlist.Move(2, 0);
+        assertEquals(0, _playlist.IndexOf(2));
+        assertEquals(1, _playlist.IndexOf(1));
+        assertEquals(2, _playlist.IndexOf(3));
+    }
+}
@@ -0,0 +1,197 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class QueueEngineTest
+{
+    private QueueEngine _queue;
+    private final List<Integer> _released = new ArrayList<>();
+    private int _current = -1;
+
+    @Before
+    public void SetUp()
+    {
+        _queue = new QueueEngine(new QueueEngine.Listener()
+        {
+            @Override
+            public void OnTrackReleased(int uid)
+            {
+                _released.add(uid);
+            }
+        });
+        _queue.SetPlaylist(new int[] { 0, 1, 2, 3, 4 }, 5, -1);
+    }
+
+    // What the service does with whatever the Move* methods return, the current track
+    // holds on to its uid while it plays
+    private int Play(int uid)
+    {
+        if (uid >= 0 && uid != _current)
+        {
+            _queue.Retain(uid);
+            _queue.Release(_current);
+            _current = uid;
+            _queue.CurrentTrackChanged(uid);
+        }
+        return uid;
+    }
+
+    private List<Integer> History()
+    {
+        List<Integer> history = new ArrayList<>();
+        for (int uid : _queue.HistoryUIDs())
+        {
+            history.add(uid);
+        }
+        return history;
+    }
+
+    //--------------------------
+
+    @Test
+    public void NextMovesThroughThePlaylistAndStopsAtTheEnd()
+    {
+        assertEquals(0, Play(_queue.MoveToNextPlaylistTrack()));
+        for (int uid = 1; uid < 5; uid++)
+        {
+            assertEquals(uid, _queue.PlaylistNextTrackUID());
+            assertEquals(uid, Play(_queue.MoveToNextPlaylistTrack()));
+        }
+        assertEquals(-1, _queue.MoveToNextPlaylistTrack());
+        assertEquals(4, _queue.PlaylistIndex());
+        assertEquals(Arrays.asList(3, 2, 1, 0), History());
+    }
+
+    @Test
+    public void PreviousMovesBackInThePlaylistAndRemembersWhereWeWere()
+    {
+        Play(_queue.SetCurrentPlaylistTrack(2));
+        assertEquals(1, Play(_queue.MoveToPrevPlaylistTrack()));
+        assertEquals(0, Play(_queue.MoveToPrevPlaylistTrack()));
+        assertEquals(-1, _queue.MoveToPrevPlaylistTrack());
+        assertEquals(Arrays.asList(1, 2), History());
+    }
+
+    @Test
+    public void BackwardAndForwardWalkTheHistory()
+    {
+        Play(_queue.SetCurrentPlaylistTrack(0));
+        Play(_queue.MoveToNextPlaylistTrack());
+        Play(_queue.MoveToNextPlaylistTrack());
+
+        assertEquals(1, Play(_queue.MoveBackInHistory()));
+        assertEquals(0, Play(_queue.MoveBackInHistory()));
+        assertEquals(-1, _queue.MoveBackInHistory());
+        assertEquals(1, Play(_queue.MoveForwardInHistory()));
+        // Past the newest entry forward carries on in the playlist
+        assertEquals(2, Play(_queue.MoveForwardInHistory()));
+        assertEquals(-1, _queue.HistoryIndex());
+        assertEquals(3, Play(_queue.MoveForwardInHistory()));
+        assertEquals(Arrays.asList(2, 1, 0), History());
+    }
+
+    @Test
+    public void MovingStructurallyFromHistoryStartsANewBranch()
+    {
+        Play(_queue.SetCurrentPlaylistTrack(0));
+        Play(_queue.MoveToNextPlaylistTrack());
+        Play(_queue.MoveToNextPlaylistTrack());
+        Play(_queue.MoveBackInHistory());
+        Play(_queue.MoveBackInHistory());
+
+        // 1 was the future of where we are in history, it is dropped
+        assertEquals(4, Play(_queue.SetCurrentPlaylistTrack(4)));
+        assertEquals(Arrays.asList(0), History());
+        assertEquals(-1, _queue.HistoryNextTrackUID());
+        assertEquals(0, Play(_queue.MoveBackInHistory()));
+    }
+
+    @Test
+    public void ClearHistoryReleasesTracksOnlyTheHistoryHeld()
+    {
+        Play(_queue.SetCurrentPlaylistTrack(0));
+        Play(_queue.MoveToNextPlaylistTrack());
+        Play(_queue.MoveToNextPlaylistTrack());
+
+        _queue.SetPlaylist(new int[] { 2, 5 }, 2, 2);
+        assertEquals(Arrays.asList(3, 4), _released);
+        assertTrue(_queue.IsRetained(0));
+        assertTrue(_queue.IsRetained(1));
+
+        _queue.ClearHistory();
+        assertEquals(Arrays.asList(3, 4, 1, 0), _released);
+        assertEquals(0, _queue.HistorySize());
+        assertTrue(_queue.IsRetained(2));
+        assertTrue(_queue.IsRetained(5));
+    }
+
+    @Test
+    public void HistoryDepthReleasesTheOldestEntries()
+    {
+        QueueEngine queue = new QueueEngine(new QueueEngine.Listener()
+        {
+            @Override
+            public void OnTrackReleased(int uid)
+            {
+                _released.add(uid);
+            }
+        }, 2);
+        _queue = queue;
+        _queue.SetPlaylist(new int[] { 0, 1, 2, 3 }, 4, -1);
+        Play(_queue.SetCurrentPlaylistTrack(0));
+        Play(_queue.MoveToNextPlaylistTrack());
+        Play(_queue.MoveToNextPlaylistTrack());
+        Play(_queue.MoveToNextPlaylistTrack());
+        assertEquals(Arrays.asList(2, 1), History());
+
+        _queue.ClearPlaylist();
+        assertEquals(Arrays.asList(0), _released);
+    }
+
+    @Test
+    public void RepeatWrapsAroundBothEnds()
+    {
+        Play(_queue.SetCurrentPlaylistTrack(4));
+        assertEquals(-1, _queue.PlaylistNextTrackUID());
+        assertFalse(_queue.UpcomingWrapsAround());
+
+        _queue.SetRepeat(true);
+        assertTrue(_queue.UpcomingWrapsAround());
+        assertEquals(0, _queue.UpcomingTrackUID());
+        assertEquals(0, Play(_queue.MoveToNextPlaylistTrack()));
+        assertFalse(_queue.UpcomingWrapsAround());
+        assertEquals(4, Play(_queue.MoveToPrevPlaylistTrack()));
+
+        _queue.SetRepeat(false);
+        assertEquals(-1, _queue.MoveToNextPlaylistTrack());
+    }
+
+    @Test
+    public void RepeatWrapsTheShuffledPass()
+    {
+        _queue.SetRepeat(true);
+        Play(_queue.SetCurrentPlaylistTrack(0));
+        _queue.SetShuffle(true, 42);
+        List<Integer> pass = new ArrayList<>();
+        pass.add(0);
+        while (!_queue.UpcomingWrapsAround())
+        {
+            pass.add(Play(_queue.MoveToNextPlaylistTrack()));
+        }
+        assertEquals(5, pass.size());
+        // The same order starts over
+        for (int i = 0; i < 5; i++)
+        {
+            assertEquals(pass.get(i).intValue(), Play(_queue.MoveToNextPlaylistTrack()));
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+
+import org.junit.Test;
+
+public class RestoredUIDsTest
+{
+    @Test
+    public void SameSavedUIDMapsToSameUID()
+    {
+        RestoredUIDs uids = new RestoredUIDs();
+        int first = uids.Map(7);
+        int second = uids.Map(3);
+        assertEquals(first, uids.Map(7));
+        assertEquals(second, uids.Map(3));
+        assertNotEquals(first, second);
+        assertEquals(-1, uids.Map(-1));
+    }
+
+    @Test
+    public void MapsAwayFromTheUIDsTheAppHandsOut()
+    {
+        RestoredUIDs uids = new RestoredUIDs();
+        for (int saved = 0; saved < 1000; saved++)
+        {
+            assertTrue(uids.Map(saved) > 1000);
+        }
+    }
+
+    // What the service does: the restored queue is dropped when the app hands us a
+    // playlist, but the restored current track keeps playing. The app counts its uids
+    // from 0 again, so without remapping track 2 of the new playlist would be taken for
+    // the one that is playing.
+    @Test
+    public void NewPlaylistDoesNotResolveToTheRestoredTrack()
+    {
+        final ArrayList<Integer> released = new ArrayList<>();
+        QueueEngine queue = new QueueEngine(new QueueEngine.Listener()
+        {
+            @Override
+            public void OnTrackReleased(int uid)
+            {
+                released.add(uid);
+            }
+        });
+
+        int[] saved = { 0, 1, 2, 3, 4 };
+        RestoredUIDs uids = new RestoredUIDs();
+        int[] playlist = saved.clone();
+        uids.MapAll(playlist);
+        int current = uids.Map(2);
+        queue.Restore(playlist, playlist.length, new int[0], 0, QueueEngine.HISTORY_DEPTH, 2, -1);
+        queue.Retain(current);
+        assertEquals(current, queue.PlaylistGet(queue.PlaylistIndex()));
+
+        queue.ClearPlaylist();
+        queue.ClearHistory();
+        assertTrue(queue.IsRetained(current));
+
+        int[] fromApp = { 0, 1, 2, 3, 4 };
+        queue.SetPlaylist(fromApp, fromApp.length, current);
+        assertEquals(-1, queue.PlaylistIndex());
+        assertTrue(queue.IsRetained(current));
+        assertFalse(released.contains(current));
+
+        // Once something else plays the restored track goes away on its own
+        queue.Release(current);
+        assertTrue(released.contains(current));
+        assertTrue(queue.IsRetained(2));
+    }
+}
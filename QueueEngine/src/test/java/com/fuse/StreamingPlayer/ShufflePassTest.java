@@ -0,0 +1,251 @@
+package com.fuse.StreamingPlayer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class ShufflePassTest
+{
+    static final int TRACKS = 40;
+
+    private QueueEngine _queue;
+    private int _nextUID;
+    private final Map<Integer, Integer> _plays = new HashMap<>();
+
+    @Before
+    public void SetUp()
+    {
+        _queue = new QueueEngine(new QueueEngine.Listener()
+        {
+            @Override
+            public void OnTrackReleased(int uid)
+            {
+            }
+        });
+        _queue.SetPlaylist(NewUIDs(TRACKS), TRACKS, -1);
+    }
+
+    private int[] NewUIDs(int count)
+    {
+        int[] uids = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            uids[i] = _nextUID++;
+        }
+        return uids;
+    }
+
+    // What the service does with whatever the Move* methods return
+    private boolean Play(int uid)
+    {
+        if (uid < 0)
+        {
+            return false;
+        }
+        _queue.CurrentTrackChanged(uid);
+        Integer plays = _plays.get(uid);
+        _plays.put(uid, plays == null ? 1 : plays + 1);
+        return true;
+    }
+
+    private int Current()
+    {
+        return _queue.PlaylistGet(_queue.PlaylistIndex());
+    }
+
+    private void PlayOutThePass()
+    {
+        while (Play(_queue.MoveToNextPlaylistTrack()))
+        {
+        }
+    }
+
+    // Every track left in the playlist was played exactly once
+    private void AssertEachPlayedOnce()
+    {
+        int[] uids = _queue.PlaylistUIDs();
+        for (int uid : uids)
+        {
+            assertEquals("plays of " + uid, Integer.valueOf(1), _plays.get(uid));
+        }
+    }
+
+    private void StartShuffled(long seed)
+    {
+        Play(_queue.SetCurrentPlaylistTrack(0));
+        _queue.SetShuffle(true, seed);
+    }
+
+    //--------------------------
+
+    @Test
+    public void EveryTrackOncePerPass()
+    {
+        StartShuffled(1);
+        PlayOutThePass();
+        AssertEachPlayedOnce();
+        assertEquals(TRACKS, _plays.size());
+    }
+
+    @Test
+    public void TogglingStartsANewPassAtTheCurrentTrack()
+    {
+        StartShuffled(2);
+        for (int i = 0; i < 10; i++)
+        {
+            Play(_queue.MoveToNextPlaylistTrack());
+        }
+        _queue.SetShuffle(false, 0);
+        _queue.SetShuffle(true, 3);
+        _plays.clear();
+        _plays.put(Current(), 1);
+
+        PlayOutThePass();
+        AssertEachPlayedOnce();
+    }
+
+    @Test
+    public void InsertedTracksArePlayedAndNothingRepeats()
+    {
+        StartShuffled(4);
+        for (int i = 0; i < 10; i++)
+        {
+            Play(_queue.MoveToNextPlaylistTrack());
+        }
+        _queue.InsertTracks(0, NewUIDs(3), 3);
+        _queue.InsertTracks(_queue.PlaylistIndex() + 1, NewUIDs(2), 2);
+        _queue.InsertTracks(-1, NewUIDs(4), 4);
+
+        PlayOutThePass();
+        AssertEachPlayedOnce();
+        assertEquals(TRACKS + 9, _plays.size());
+    }
+
+    @Test
+    public void RemovedTracksDoNotLoseTheRest()
+    {
+        StartShuffled(5);
+        for (int i = 0; i < 10; i++)
+        {
+            Play(_queue.MoveToNextPlaylistTrack());
+        }
+        _queue.RemoveTracks(0, 3);
+        _queue.RemoveTracks(_queue.PlaylistSize() - 5, 5);
+
+        PlayOutThePass();
+        AssertEachPlayedOnce();
+    }
+
+    @Test
+    public void RemovingTheCurrentTrackCarriesOnWithTheRest()
+    {
+        StartShuffled(6);
+        for (int i = 0; i < 10; i++)
+        {
+            Play(_queue.MoveToNextPlaylistTrack());
+        }
+        _queue.RemoveTracks(_queue.PlaylistIndex(), 1);
+        assertEquals(-1, _queue.PlaylistIndex());
+
+        PlayOutThePass();
+        AssertEachPlayedOnce();
+    }
+
+    @Test
+    public void MovedTracksArePlayedOnce()
+    {
+        StartShuffled(7);
+        for (int i = 0; i < 10; i++)
+        {
+            Play(_queue.MoveToNextPlaylistTrack());
+        }
+        _queue.MoveTrack(_queue.PlaylistIndex(), 0);
+        _queue.MoveTrack(TRACKS - 1, 1);
+        _queue.MoveTrack(2, TRACKS - 1);
+
+        PlayOutThePass();
+        AssertEachPlayedOnce();
+    }
+
+    @Test
+    public void RepeatStartsTheNextPassAfterAnEdit()
+    {
+        _queue.SetRepeat(true);
+        StartShuffled(8);
+        for (int i = 0; i < 10; i++)
+        {
+            Play(_queue.MoveToNextPlaylistTrack());
+        }
+        _queue.InsertTracks(5, NewUIDs(2), 2);
+        _queue.RemoveTracks(20, 2);
+
+        int size = _queue.PlaylistSize();
+        while (!_queue.UpcomingWrapsAround())
+        {
+            assertTrue(Play(_queue.MoveToNextPlaylistTrack()));
+        }
+        AssertEachPlayedOnce();
+
+        // The second pass plays everything once more, the track we ended on last
+        _plays.clear();
+        int last = Current();
+        for (int i = 0; i < size; i++)
+        {
+            assertTrue(Play(_queue.MoveToNextPlaylistTrack()));
+        }
+        AssertEachPlayedOnce();
+        assertEquals(last, Current());
+    }
+
+    @Test
+    public void RandomEditsNeverRepeatOrLoseATrack()
+    {
+        for (int seed = 0; seed < 50; seed++)
+        {
+            SetUp();
+            _plays.clear();
+            Random random = new Random(seed);
+            StartShuffled(seed);
+
+            List<Integer> removed = new ArrayList<>();
+            while (Play(_queue.MoveToNextPlaylistTrack()))
+            {
+                int size = _queue.PlaylistSize();
+                switch (random.nextInt(4))
+                {
+                    case 0:
+                        int count = 1 + random.nextInt(3);
+                        _queue.InsertTracks(random.nextInt(size + 1), NewUIDs(count), count);
+                        break;
+                    case 1:
+                        int index = random.nextInt(size);
+                        if (index != _queue.PlaylistIndex() && size > 1)
+                        {
+                            removed.add(_queue.PlaylistGet(index));
+                            _queue.RemoveTracks(index, 1);
+                        }
+                        break;
+                    case 2:
+                        _queue.MoveTrack(random.nextInt(size), random.nextInt(size));
+                        break;
+                    default:
+                        break;
+                }
+            }
+            AssertEachPlayedOnce();
+            for (int uid : removed)
+            {
+                Integer plays = _plays.get(uid);
+                assertTrue(plays == null || plays == 1);
+            }
+        }
+    }
+}
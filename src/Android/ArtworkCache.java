@@ -0,0 +1,233 @@
+package com.fuse.StreamingPlayer;
+
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+
+/**
+ * Two level cache for track artwork.
+ *
+ * Bitmaps are decoded straight to the size we show them at (the lock screen is the
+ * biggest) and kept in a memory cache with a byte budget. The downsampled images are
+ * also written to a DiskCache so remote artwork is only downloaded once.
+ */
+public final class ArtworkCache
+{
+    static final long DISK_MAX_BYTES = 16L * 1024 * 1024;
+    static final int MAX_TARGET_SIZE = 800;
+
+    private final LruCache<String, Bitmap> _memory;
+    private final DiskCache _disk;
+    private final int _targetSize;
+    private volatile int _connectTimeoutMs = 10000;
+    private volatile int _readTimeoutMs = 15000;
+
+    public ArtworkCache(Context context)
+    {
+        // Artwork is the only big thing we keep around so a sixteenth of the heap is plenty
+        int budget = (int)Math.min(Runtime.getRuntime().maxMemory() / 16, Integer.MAX_VALUE);
+        _memory = new LruCache<String, Bitmap>(budget)
+        {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap)
+            {
+                return bitmap.getByteCount();
+            }
+        };
+        _disk = new DiskCache(new File(context.getCacheDir(), "StreamingPlayerArtwork"), DISK_MAX_BYTES);
+
+        DisplayMetrics display = context.getResources().getDisplayMetrics();
+        _targetSize = Math.min(Math.min(display.widthPixels, display.heightPixels), MAX_TARGET_SIZE);
+    }
+
+    public void SetTimeouts(int connectTimeoutMs, int readTimeoutMs)
+    {
+        _connectTimeoutMs = connectTimeoutMs;
+        _readTimeoutMs = readTimeoutMs;
+    }
+
+    // Only checks memory so is safe to call from the main thread
+    public Bitmap GetCached(String url)
+    {
+        return _memory.get(url);
+    }
+
+    // Blocking, call from a background thread
+    public Bitmap Load(String url)
+    {
+        Bitmap bitmap = _memory.get(url);
+        if (bitmap != null)
+        {
+            return bitmap;
+        }
+
+        if (ArtworkMediaNotification.IsRemoteFile(url))
+        {
+            bitmap = LoadRemote(url);
+        }
+        else
+        {
+            bitmap = DecodeFile(url);
+        }
+
+        if (bitmap != null)
+        {
+            _memory.put(url, bitmap);
+        }
+        return bitmap;
+    }
+
+    private Bitmap LoadRemote(String url)
+    {
+        File cached = _disk.Get(url);
+        if (cached != null)
+        {
+            Bitmap bitmap = DecodeFile(cached.getPath());
+            if (bitmap != null)
+            {
+                return bitmap;
+            }
+        }
+
+        try
+        {
+            byte[] data = Download(url);
+            Bitmap bitmap = DecodeBytes(data);
+            if (bitmap != null)
+            {
+                Store(url, bitmap);
+            }
+            return bitmap;
+        }
+        catch (IOException e)
+        {
+            return null;
+        }
+    }
+
+    // We read to the end and close rather than disconnect so the connection goes back
+    // to the platform's keep-alive pool for the next artwork from the same host
+    private byte[] Download(String urlStr) throws IOException
+    {
+        URLConnection connection = new URL(urlStr).openConnection();
+        connection.setConnectTimeout(_connectTimeoutMs);
+        connection.setReadTimeout(_readTimeoutMs);
+        InputStream in = connection.getInputStream();
+        try
+        {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8 * 1024];
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+            {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+        finally
+        {
+            in.close();
+        }
+    }
+
+    private void Store(String url, Bitmap bitmap)
+    {
+        try
+        {
+            File temp = _disk.NewTempFile(url);
+            FileOutputStream out = new FileOutputStream(temp);
+            boolean written;
+            try
+            {
+                written = bitmap.compress(Bitmap.CompressFormat.JPEG, 90, out);
+            }
+            finally
+            {
+                out.close();
+            }
+            if (written)
+            {
+                _disk.Commit(url, temp);
+            }
+            else
+            {
+                temp.delete();
+            }
+        }
+        catch (IOException e)
+        {
+            // Not being able to cache is not a reason to not show the artwork
+        }
+    }
+
+    //--------------------------
+    // Decoding
+
+    private int SampleSizeFor(BitmapFactory.Options bounds)
+    {
+        int sampleSize = 1;
+        int width = bounds.outWidth;
+        int height = bounds.outHeight;
+        while (width / (sampleSize * 2) >= _targetSize && height / (sampleSize * 2) >= _targetSize)
+        {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap DecodeBytes(byte[] data)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+        {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = SampleSizeFor(options);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+    }
+
+    private Bitmap DecodeFile(String path)
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(path, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0)
+        {
+            return null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = SampleSizeFor(options);
+        options.inPreferredConfig = Bitmap.Config.ARGB_8888;
+        return BitmapFactory.decodeFile(path, options);
+    }
+
+    //--------------------------
+
+    public void Trim(int level)
+    {
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            _memory.evictAll();
+        }
+        else if (level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        {
+            _memory.trimToSize(_memory.maxSize() / 2);
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package com.fuse.StreamingPlayer;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.os.Process;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Loads artwork through the ArtworkCache on background threads.
+ *
+ * Requests for a url that is already being loaded are merged, so every caller gets
+ * the result of one download. Results are delivered on the handler given to the
+ * constructor; callers decide there whether the result is still wanted.
+ *
+ * Prefetches run on a separate low priority thread and each call to Prefetch
+ * replaces whatever was still waiting from the previous call. If someone asks for
+ * a url that is only waiting to be prefetched it is picked up by the normal pool
+ * straight away.
+ */
+public final class ArtworkLoader
+{
+    public interface Callback
+    {
+        void OnArtworkLoaded(String url, Bitmap bitmap);
+    }
+
+    static final int THREADS = 2;
+    static final int MAX_PREFETCH_QUEUED = 16;
+
+    private final ArtworkCache _cache;
+    private final Handler _resultHandler;
+    private final PlaybackMetrics _metrics;
+    private final ExecutorService _executor;
+    private final ThreadPoolExecutor _prefetchExecutor;
+
+    // Guarded by _inFlight
+    private final HashMap<String, Request> _inFlight = new HashMap<>();
+    private final ArrayList<Request> _prefetching = new ArrayList<>();
+
+    private final class Request implements Runnable
+    {
+        final String Url;
+        final ArrayList<Callback> Callbacks = new ArrayList<>();
+        final AtomicBoolean Started = new AtomicBoolean(false);
+        boolean Foreground = false;
+
+        Request(String url)
+        {
+            Url = url;
+        }
+
+        @Override
+        public void run()
+        {
+            // A request can be queued on both pools, whichever gets to it first does the work
+            if (!Started.compareAndSet(false, true))
+                return;
+            Finish(this, _cache.Load(Url));
+        }
+    }
+
+    public ArtworkLoader(ArtworkCache cache, Handler resultHandler, PlaybackMetrics metrics)
+    {
+        _cache = cache;
+        _resultHandler = resultHandler;
+        _metrics = metrics;
+        _executor = Executors.newFixedThreadPool(THREADS, NewThreadFactory("StreamingPlayerArtwork", Process.THREAD_PRIORITY_BACKGROUND));
+        _prefetchExecutor = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(MAX_PREFETCH_QUEUED),
+                NewThreadFactory("StreamingPlayerArtworkPrefetch", Process.THREAD_PRIORITY_LOWEST),
+                new ThreadPoolExecutor.DiscardOldestPolicy());
+        _prefetchExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    static ThreadFactory NewThreadFactory(final String name, final int priority)
+    {
+        return new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(final Runnable r)
+            {
+                Thread t = new Thread(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        Process.setThreadPriority(priority);
+                        r.run();
+                    }
+                }, name);
+                t.setDaemon(true);
+                return t;
+            }
+        };
+    }
+
+    public void SetTimeouts(int connectTimeoutMs, int readTimeoutMs)
+    {
+        _cache.SetTimeouts(connectTimeoutMs, readTimeoutMs);
+    }
+
+    // The callback is run on the result handler, possibly before this returns if the
+    // bitmap is already in memory
+    public void Load(String url, Callback callback)
+    {
+        Bitmap cached = _cache.GetCached(url);
+        if (cached != null)
+        {
+            callback.OnArtworkLoaded(url, cached);
+            return;
+        }
+
+        Request request;
+        boolean submit;
+        synchronized (_inFlight)
+        {
+            request = _inFlight.get(url);
+            if (request == null)
+            {
+                request = new Request(url);
+                _inFlight.put(url, request);
+            }
+            else
+            {
+                _metrics.Increment("artwork.mergedRequests");
+            }
+            request.Callbacks.add(callback);
+            submit = !request.Foreground;
+            request.Foreground = true;
+        }
+
+        if (submit)
+        {
+            _executor.execute(request);
+        }
+    }
+
+    public void Prefetch(List<String> urls)
+    {
+        synchronized (_inFlight)
+        {
+            CancelPrefetchLocked();
+            for (String url : urls)
+            {
+                if (url == null || _inFlight.containsKey(url) || _cache.GetCached(url) != null)
+                    continue;
+
+                Request request = new Request(url);
+                _inFlight.put(url, request);
+                _prefetching.add(request);
+                _prefetchExecutor.execute(request);
+            }
+        }
+    }
+
+    public void CancelPrefetch()
+    {
+        synchronized (_inFlight)
+        {
+            CancelPrefetchLocked();
+        }
+    }
+
+    private void CancelPrefetchLocked()
+    {
+        for (Request request : _prefetching)
+        {
+            // Requests someone is waiting on are left for the foreground pool
+            if (!request.Foreground && request.Started.compareAndSet(false, true))
+            {
+                _inFlight.remove(request.Url);
+                _prefetchExecutor.remove(request);
+            }
+        }
+        _prefetching.clear();
+    }
+
+    private void Finish(Request request, final Bitmap bitmap)
+    {
+        final ArrayList<Callback> callbacks;
+        synchronized (_inFlight)
+        {
+            _inFlight.remove(request.Url);
+            _prefetching.remove(request);
+            callbacks = new ArrayList<>(request.Callbacks);
+        }
+
+        if (callbacks.isEmpty())
+            return;
+
+        final String url = request.Url;
+        _resultHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                for (Callback callback : callbacks)
+                    callback.OnArtworkLoaded(url, bitmap);
+            }
+        });
+    }
+
+    public void Shutdown()
+    {
+        CancelPrefetch();
+        _executor.shutdownNow();
+        _prefetchExecutor.shutdownNow();
+    }
+}
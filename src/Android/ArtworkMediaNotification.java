@@ -3,31 +3,21 @@ package com.fuse.StreamingPlayer;
 import android.app.NotificationManager;
 import android.content.Context;
 import android.graphics.Bitmap;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
 import android.support.v7.app.NotificationCompat;
-import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.view.KeyEvent;
 
-import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.net.URL;
 
+/**
+ * Builds and posts the media style notification. The SessionPublisher decides when
+ * that is needed and hands us the artwork.
+ */
 public final class ArtworkMediaNotification
 {
     static final int ID = 1;
 
-    static String _cachedArtworkURL = null;
-    static Bitmap _cachedArtwork = null;
-
-    static void FreeCached()
-    {
-        _cachedArtwork.recycle();
-        _cachedArtwork = null;
-    }
-
     static boolean IsRemoteFile(String url)
     {
         try
@@ -42,96 +32,40 @@ public final class ArtworkMediaNotification
         }
     }
 
-    private class DownloadArtworkBitmapTask extends AsyncTask<String, Void, Bitmap>
-    {
-        protected Bitmap doInBackground(String... urls)
-        {
-            if (urls.length > 0)
-            {
-                String urlStr = urls[0];
-                if (_cachedArtworkURL !=null && _cachedArtworkURL.equals(urlStr))
-                {
-                    return _cachedArtwork;
-                }
-                else if (IsRemoteFile(urlStr))
-                {
-                    return LoadRemote(urlStr);
-                }
-                else
-                {
-                    return LoadLocal(urlStr);
-                }
-            }
-            return null;
-        }
-
-        Bitmap LoadRemote(String urlStr)
-        {
-            try
-            {
-                URL url = new URL(urlStr);
-                Bitmap myBitmap = BitmapFactory.decodeStream(url.openConnection().getInputStream());
-                _cachedArtwork = myBitmap;
-                _cachedArtworkURL = urlStr;
-                return myBitmap;
-            }
-            catch (IOException e)
-            {
-                return null;
-            }
-        }
-
-        Bitmap LoadLocal(String urlStr)
-        {
-            BitmapFactory.Options options = new BitmapFactory.Options();
-            options.inPreferredConfig = Bitmap.Config.ARGB_8888;
-            return BitmapFactory.decodeFile(urlStr, options);
-        }
+    private final MediaSessionCompat _session;
+    private final StreamingAudioService _service;
 
-        protected void onPostExecute(Bitmap result)
-        {
-            if (result != null)
-            {
-                setArtworkBitmap(result);
-            }
-        }
-    }
+    // Each action holds a PendingIntent, which costs a call to the system to create,
+    // so we only make them once
+    private NotificationCompat.Action _previousAction;
+    private NotificationCompat.Action _nextAction;
+    private NotificationCompat.Action _playAction;
+    private NotificationCompat.Action _pauseAction;
 
-    private MediaSessionCompat _session;
-    private StreamingAudioService _service;
-    private int _primaryActionIcon;
-    private String _primaryActionTitle;
-    private int _primaryActionKeyEvent;
-    private MediaMetadataCompat.Builder _metadataBuilder;
-
-    private ArtworkMediaNotification(MediaMetadataCompat metadata, MediaSessionCompat session, StreamingAudioService service, String urlStr,
-                                     int primaryActionIcon, String primaryActionTitle, int primaryActionKeyEvent)
+    ArtworkMediaNotification(MediaSessionCompat session, StreamingAudioService service)
     {
         _session = session;
         _service = service;
-        _primaryActionIcon = primaryActionIcon;
-        _primaryActionTitle = primaryActionTitle;
-        _primaryActionKeyEvent = primaryActionKeyEvent;
-        _metadataBuilder = new MediaMetadataCompat.Builder(metadata);
-        if (urlStr!=null)
-        {
-            new DownloadArtworkBitmapTask().execute(urlStr);
-        }
-        else
-        {
-            setArtworkBitmap(null);
-        }
     }
 
-    public void setArtworkBitmap(Bitmap bmp)
+    // primaryActionKeyEvent is KeyEvent.KEYCODE_MEDIA_PLAY or KeyEvent.KEYCODE_MEDIA_PAUSE
+    public void Post(int primaryActionKeyEvent, Bitmap artwork)
     {
+        if (_previousAction == null)
+        {
+            _previousAction = generateAction(android.R.drawable.ic_media_previous, "Previous", KeyEvent.KEYCODE_MEDIA_PREVIOUS);
+            _nextAction = generateAction(android.R.drawable.ic_media_next, "Next", KeyEvent.KEYCODE_MEDIA_NEXT);
+            _playAction = generateAction(android.R.drawable.ic_media_play, "Play", KeyEvent.KEYCODE_MEDIA_PLAY);
+            _pauseAction = generateAction(android.R.drawable.ic_media_pause, "Pause", KeyEvent.KEYCODE_MEDIA_PAUSE);
+        }
+
         // Time to make the notifications
         NotificationCompat.Builder builder = MediaStyleHelper.makeBuilder(_service, _session);
 
         // actions
-        builder.addAction(generateAction(android.R.drawable.ic_media_previous, "Previous", KeyEvent.KEYCODE_MEDIA_PREVIOUS));
-        builder.addAction(generateAction(_primaryActionIcon, _primaryActionTitle, _primaryActionKeyEvent));
-        builder.addAction(generateAction(android.R.drawable.ic_media_next, "Next", KeyEvent.KEYCODE_MEDIA_NEXT));
+        builder.addAction(_previousAction);
+        builder.addAction(primaryActionKeyEvent == KeyEvent.KEYCODE_MEDIA_PLAY ? _playAction : _pauseAction);
+        builder.addAction(_nextAction);
 
         // style
         NotificationCompat.MediaStyle style = new NotificationCompat.MediaStyle().setMediaSession(_session.getSessionToken());
@@ -140,12 +74,9 @@ public final class ArtworkMediaNotification
 
         // icon
         builder.setSmallIcon(android.R.drawable.ic_media_play);
-        if (bmp != null)
+        if (artwork != null)
         {
-            builder.setLargeIcon(bmp);
-            //This lets the album art be visible as the background while in the lock screen
-            _metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, bmp);
-            _session.setMetadata(_metadataBuilder.build());
+            builder.setLargeIcon(artwork);
         }
 
         // dispatch
@@ -153,16 +84,15 @@ public final class ArtworkMediaNotification
         notificationManager.notify(ID, builder.build());
     }
 
-    public NotificationCompat.Action generateAction(int icon, String title, int mediaKeyEvent)
+    public void Cancel()
     {
-        // mediaKeyEvent should be something like KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE
-        return new NotificationCompat.Action(icon, title, MediaStyleHelper.getActionIntent(_service, mediaKeyEvent));
+        NotificationManager notificationManager = (NotificationManager) _service.getSystemService(Context.NOTIFICATION_SERVICE);
+        notificationManager.cancel(ID);
     }
 
-    public static void Notify(Track track, MediaSessionCompat session, StreamingAudioService service,
-                              int primaryActionIcon, String primaryActionTitle, int primaryActionKeyEvent)
+    public NotificationCompat.Action generateAction(int icon, String title, int mediaKeyEvent)
     {
-        //Async task for getting artwork bitmap and assigning it to the media session
-        new ArtworkMediaNotification(service._metadataBuilder.build(), session, service, track.ArtworkUrl, primaryActionIcon, primaryActionTitle, primaryActionKeyEvent);
+        // mediaKeyEvent should be something like KeyEvent.KEYCODE_MEDIA_PLAY_PAUSE
+        return new NotificationCompat.Action(icon, title, MediaStyleHelper.getActionIntent(_service, mediaKeyEvent));
     }
 }
@@ -0,0 +1,456 @@
+package com.fuse.StreamingPlayer;
+
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A loopback http server that sits between MediaPlayer and the origin.
+ *
+ * Requests for tracks that are in the DiskCache are served straight from disk.
+ * Everything else is fetched from the origin and, when the player reads the whole
+ * file from the start, written through to the cache as it streams. Range requests
+ * are honoured in both cases so seeking keeps working.
+ *
+ * Any app on the device can connect to a loopback port, so every url we hand out
+ * carries a random token that is new for each proxy, and requests without it are
+ * turned away.
+ */
+public final class CachingProxy
+{
+    static final String TAG = "StreamingPlayer";
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final long THROUGHPUT_SAMPLE_BYTES = 256 * 1024;
+
+    private final DiskCache _cache;
+    private final PlaybackMetrics _metrics;
+    private final ThroughputEstimator _throughput;
+    private final String _token = NewToken();
+    private ServerSocket _serverSocket;
+    private ExecutorService _connections;
+
+    public CachingProxy(DiskCache cache, PlaybackMetrics metrics, ThroughputEstimator throughput)
+    {
+        _cache = cache;
+        _metrics = metrics;
+        _throughput = throughput;
+    }
+
+    public boolean Start()
+    {
+        try
+        {
+            _serverSocket = new ServerSocket(0, 8, InetAddress.getByName("127.0.0.1"));
+        }
+        catch (IOException e)
+        {
+            Log.d(TAG, "Could not start caching proxy: " + e.toString());
+            return false;
+        }
+
+        _connections = Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            @Override
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, "StreamingPlayerProxy");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+
+        final ServerSocket serverSocket = _serverSocket;
+        _connections.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                while (!serverSocket.isClosed())
+                {
+                    try
+                    {
+                        final Socket socket = serverSocket.accept();
+                        _connections.execute(new Runnable()
+                        {
+                            @Override
+                            public void run()
+                            {
+                                Serve(socket);
+                            }
+                        });
+                    }
+                    catch (IOException e)
+                    {
+                        // closed by Stop()
+                    }
+                }
+            }
+        });
+        return true;
+    }
+
+    public void Stop()
+    {
+        if (_serverSocket != null)
+        {
+            try
+            {
+                _serverSocket.close();
+            }
+            catch (IOException e) {}
+            _serverSocket = null;
+        }
+        if (_connections != null)
+        {
+            _connections.shutdownNow();
+            _connections = null;
+        }
+    }
+
+    // The url to hand to MediaPlayer for the given origin url
+    public String UrlFor(String originUrl)
+    {
+        if (_serverSocket == null)
+        {
+            return originUrl;
+        }
+        try
+        {
+            return "http://127.0.0.1:" + _serverSocket.getLocalPort() + "/" + _token + "/" + URLEncoder.encode(originUrl, "UTF-8");
+        }
+        catch (IOException e)
+        {
+            return originUrl;
+        }
+    }
+
+    //--------------------------
+
+    static String NewToken()
+    {
+        byte[] bytes = new byte[16];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder token = new StringBuilder();
+        for (byte b : bytes)
+        {
+            token.append(String.format("%02x", b & 0xff));
+        }
+        return token.toString();
+    }
+
+    static final class Request
+    {
+        String OriginUrl; // null if the request did not carry our token
+        long RangeStart = 0;
+        long RangeEnd = -1; // inclusive, -1 for open ended
+        boolean HasRange = false;
+    }
+
+    private Request ReadRequest(InputStream in) throws IOException
+    {
+        BufferedReader reader = new BufferedReader(new InputStreamReader(in, "US-ASCII"));
+        String requestLine = reader.readLine();
+        if (requestLine == null)
+            return null;
+
+        // GET /<token>/<encoded url> HTTP/1.1
+        String[] parts = requestLine.split(" ");
+        if (parts.length < 2 || parts[1].length() < 2)
+            return null;
+
+        Request request = new Request();
+        String path = parts[1].substring(1);
+        int slash = path.indexOf('/');
+        if (slash >= 0 && MessageDigest.isEqual(path.substring(0, slash).getBytes("US-ASCII"), _token.getBytes("US-ASCII")))
+        {
+            request.OriginUrl = URLDecoder.decode(path.substring(slash + 1), "UTF-8");
+        }
+
+        String line;
+        while ((line = reader.readLine()) != null && line.length() > 0)
+        {
+            int colon = line.indexOf(':');
+            if (colon < 0)
+                continue;
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Range") && value.startsWith("bytes="))
+            {
+                String[] range = value.substring(6).split("-", 2);
+                try
+                {
+                    request.RangeStart = range[0].length() > 0 ? Long.parseLong(range[0]) : 0;
+                    request.RangeEnd = range.length > 1 && range[1].length() > 0 ? Long.parseLong(range[1]) : -1;
+                    request.HasRange = true;
+                }
+                catch (NumberFormatException e)
+                {
+                    request.HasRange = false;
+                }
+            }
+        }
+        return request;
+    }
+
+    private void Serve(Socket socket)
+    {
+        try
+        {
+            Request request = ReadRequest(socket.getInputStream());
+            if (request == null)
+                return;
+
+            OutputStream out = socket.getOutputStream();
+            if (request.OriginUrl == null)
+            {
+                _metrics.Increment("proxy.rejected");
+                out.write("HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes("US-ASCII"));
+                out.flush();
+                return;
+            }
+
+            File cached = _cache.Get(request.OriginUrl);
+            if (cached != null)
+            {
+                _metrics.Increment("cache.hits");
+                ServeFromCache(request, cached, out);
+            }
+            else
+            {
+                _metrics.Increment("cache.misses");
+                ServeFromOrigin(request, out);
+            }
+            out.flush();
+        }
+        catch (IOException e)
+        {
+            // The player closes the connection whenever it seeks, this is expected
+        }
+        finally
+        {
+            try
+            {
+                socket.close();
+            }
+            catch (IOException e) {}
+        }
+    }
+
+    private void ServeFromCache(Request request, File file, OutputStream out) throws IOException
+    {
+        long length = file.length();
+        if (request.HasRange && request.RangeStart >= length)
+        {
+            String headers = "HTTP/1.1 416 Range Not Satisfiable\r\n" +
+                    "Content-Range: bytes */" + length + "\r\n" +
+                    "Content-Length: 0\r\n" +
+                    "Accept-Ranges: bytes\r\n" +
+                    "Connection: close\r\n\r\n";
+            out.write(headers.getBytes("US-ASCII"));
+            return;
+        }
+        long start = request.RangeStart;
+        long end = (request.RangeEnd < 0 || request.RangeEnd >= length) ? length - 1 : request.RangeEnd;
+        long count = Math.max(0, end - start + 1);
+
+        StringBuilder headers = new StringBuilder();
+        if (request.HasRange)
+        {
+            headers.append("HTTP/1.1 206 Partial Content\r\n");
+            headers.append("Content-Range: bytes ").append(start).append('-').append(end).append('/').append(length).append("\r\n");
+        }
+        else
+        {
+            headers.append("HTTP/1.1 200 OK\r\n");
+        }
+        headers.append("Content-Type: ").append(GuessContentType(request.OriginUrl)).append("\r\n");
+        headers.append("Content-Length: ").append(count).append("\r\n");
+        headers.append("Accept-Ranges: bytes\r\n");
+        headers.append("Connection: close\r\n\r\n");
+        out.write(headers.toString().getBytes("US-ASCII"));
+
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try
+        {
+            raf.seek(start);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long remaining = count;
+            while (remaining > 0)
+            {
+                int read = raf.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (read < 0)
+                    break;
+                out.write(buffer, 0, read);
+                remaining -= read;
+                _metrics.Add("cache.bytesSaved", read);
+            }
+        }
+        finally
+        {
+            raf.close();
+        }
+    }
+
+    private void ServeFromOrigin(Request request, OutputStream out) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(request.OriginUrl).openConnection();
+        if (request.HasRange)
+        {
+            String range = "bytes=" + request.RangeStart + "-" + (request.RangeEnd >= 0 ? Long.toString(request.RangeEnd) : "");
+            connection.setRequestProperty("Range", range);
+        }
+
+        InputStream in = null;
+        FileOutputStream cacheOut = null;
+        File tempFile = null;
+        try
+        {
+            int status = connection.getResponseCode();
+            long contentLength = connection.getContentLength();
+
+            StringBuilder headers = new StringBuilder();
+            headers.append("HTTP/1.1 ").append(status).append(' ').append(ReasonPhrase(status, connection.getResponseMessage())).append("\r\n");
+            AppendHeader(headers, "Content-Type", connection.getContentType());
+            AppendHeader(headers, "Content-Range", connection.getHeaderField("Content-Range"));
+            if (contentLength >= 0)
+                AppendHeader(headers, "Content-Length", Long.toString(contentLength));
+            // Only claim ranges when the origin does, we pass range requests straight on
+            String acceptRanges = connection.getHeaderField("Accept-Ranges");
+            if (acceptRanges == null && status == 206)
+                acceptRanges = "bytes";
+            AppendHeader(headers, "Accept-Ranges", acceptRanges);
+            headers.append("Connection: close\r\n\r\n");
+            out.write(headers.toString().getBytes("US-ASCII"));
+
+            in = status >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (in == null)
+                return;
+
+            // We can only fill the cache when we are reading the whole file from the start
+            boolean wholeFile = status == 200
+                    || (status == 206 && request.RangeStart == 0 && request.RangeEnd < 0);
+            if (wholeFile)
+            {
+                tempFile = _cache.NewTempFile(request.OriginUrl);
+                cacheOut = new FileOutputStream(tempFile);
+            }
+
+            // Only the time spent waiting on the origin is measured. Once the player's
+            // buffer is full it is the writes that block, which says nothing about the network.
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            long sampleBytes = 0;
+            long sampleNanos = 0;
+            int read;
+            while (true)
+            {
+                long readStart = System.nanoTime();
+                read = in.read(buffer);
+                if (read < 0)
+                    break;
+                sampleNanos += System.nanoTime() - readStart;
+                sampleBytes += read;
+                if (sampleBytes >= THROUGHPUT_SAMPLE_BYTES)
+                {
+                    _throughput.AddSample(sampleBytes, sampleNanos / 1000000);
+                    sampleBytes = 0;
+                    sampleNanos = 0;
+                }
+
+                out.write(buffer, 0, read);
+                total += read;
+                if (cacheOut != null)
+                    cacheOut.write(buffer, 0, read);
+            }
+            _throughput.AddSample(sampleBytes, sampleNanos / 1000000);
+
+            if (cacheOut != null)
+            {
+                cacheOut.close();
+                cacheOut = null;
+                // Without a length a connection the origin dropped looks like the end of
+                // the file. A chunked body is the exception, HttpURLConnection throws
+                // unless the last chunk arrived.
+                boolean chunked = "chunked".equalsIgnoreCase(connection.getHeaderField("Transfer-Encoding"));
+                boolean complete = contentLength >= 0 ? total == contentLength : chunked;
+                if (complete)
+                {
+                    _cache.Commit(request.OriginUrl, tempFile);
+                    tempFile = null;
+                }
+                else
+                {
+                    _metrics.Increment("cache.incompleteDropped");
+                }
+            }
+        }
+        finally
+        {
+            if (in != null)
+                in.close();
+            if (cacheOut != null)
+                cacheOut.close();
+            if (tempFile != null)
+                tempFile.delete();
+            connection.disconnect();
+        }
+    }
+
+    // The origin's own reason phrase when it sent one. Some servers leave it out, and
+    // HTTP/2 has none, so then we fall back to the usual phrase for the status.
+    static String ReasonPhrase(int status, String originMessage)
+    {
+        if (originMessage != null && !originMessage.isEmpty())
+            return originMessage;
+        switch (status)
+        {
+            case 200: return "OK";
+            case 206: return "Partial Content";
+            case 301: return "Moved Permanently";
+            case 302: return "Found";
+            case 304: return "Not Modified";
+            case 400: return "Bad Request";
+            case 401: return "Unauthorized";
+            case 403: return "Forbidden";
+            case 404: return "Not Found";
+            case 416: return "Range Not Satisfiable";
+            case 500: return "Internal Server Error";
+            case 502: return "Bad Gateway";
+            case 503: return "Service Unavailable";
+            case 504: return "Gateway Timeout";
+            default: return status >= 400 ? "Error" : "OK";
+        }
+    }
+
+    static void AppendHeader(StringBuilder headers, String name, String value)
+    {
+        if (value != null)
+            headers.append(name).append(": ").append(value).append("\r\n");
+    }
+
+    static String GuessContentType(String url)
+    {
+        String type = URLConnection.guessContentTypeFromName(url);
+        return type != null ? type : "audio/mpeg";
+    }
+}
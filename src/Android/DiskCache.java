@@ -0,0 +1,178 @@
+package com.fuse.StreamingPlayer;
+
+import java.io.File;
+import java.io.IOException;
+import java.math.BigInteger;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Size bounded, least-recently-used store of files fetched from urls. Used for the
+ * audio we stream and for decoded artwork.
+ *
+ * Entries are keyed by a hash of the origin url. A file only becomes visible once
+ * it has been written completely and committed, partial downloads live in a
+ * temporary file until then. The pinned entry (the track that is playing) is never
+ * evicted.
+ */
+public final class DiskCache
+{
+    static final String ENTRY_SUFFIX = ".entry";
+    static final String TEMP_SUFFIX = ".tmp";
+
+    private final File _directory;
+    private final long _maxBytes;
+    private long _totalBytes = 0;
+    private String _pinnedKey = null;
+
+    // key -> size in bytes, iterates from least to most recently used
+    private final LinkedHashMap<String, Long> _entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    public DiskCache(File directory, long maxBytes)
+    {
+        _directory = directory;
+        _maxBytes = maxBytes;
+        _directory.mkdirs();
+        LoadIndex();
+    }
+
+    private void LoadIndex()
+    {
+        File[] files = _directory.listFiles();
+        if (files == null)
+            return;
+
+        Arrays.sort(files, new Comparator<File>()
+        {
+            @Override
+            public int compare(File a, File b)
+            {
+                return Long.compare(a.lastModified(), b.lastModified());
+            }
+        });
+
+        for (File file : files)
+        {
+            String name = file.getName();
+            if (name.endsWith(ENTRY_SUFFIX))
+            {
+                String key = name.substring(0, name.length() - ENTRY_SUFFIX.length());
+                _entries.put(key, file.length());
+                _totalBytes += file.length();
+            }
+            else if (name.endsWith(TEMP_SUFFIX))
+            {
+                // left over from a download that never finished
+                file.delete();
+            }
+        }
+        Trim();
+    }
+
+    static String KeyFor(String url)
+    {
+        try
+        {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            return String.format("%040x", new BigInteger(1, hash));
+        }
+        catch (NoSuchAlgorithmException | IOException e)
+        {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private File EntryFile(String key)
+    {
+        return new File(_directory, key + ENTRY_SUFFIX);
+    }
+
+    // Returns the cached file for the url or null if we dont have all of it
+    public synchronized File Get(String url)
+    {
+        String key = KeyFor(url);
+        if (_entries.get(key) == null)
+        {
+            return null;
+        }
+        File file = EntryFile(key);
+        if (!file.exists())
+        {
+            Remove(key);
+            return null;
+        }
+        file.setLastModified(System.currentTimeMillis());
+        return file;
+    }
+
+    public synchronized boolean Contains(String url)
+    {
+        return _entries.containsKey(KeyFor(url));
+    }
+
+    public File NewTempFile(String url) throws IOException
+    {
+        return File.createTempFile(KeyFor(url), TEMP_SUFFIX, _directory);
+    }
+
+    public synchronized void Commit(String url, File tempFile)
+    {
+        String key = KeyFor(url);
+        File file = EntryFile(key);
+        Remove(key);
+        if (tempFile.renameTo(file))
+        {
+            _entries.put(key, file.length());
+            _totalBytes += file.length();
+            Trim();
+        }
+        else
+        {
+            tempFile.delete();
+        }
+    }
+
+    // The pinned url is never evicted, the service uses this for the track that is playing
+    public synchronized void Pin(String url)
+    {
+        _pinnedKey = url == null ? null : KeyFor(url);
+    }
+
+    private void Remove(String key)
+    {
+        Long size = _entries.remove(key);
+        if (size != null)
+        {
+            _totalBytes -= size;
+            EntryFile(key).delete();
+        }
+    }
+
+    private void Trim()
+    {
+        if (_totalBytes <= _maxBytes)
+            return;
+
+        ArrayList<String> evict = new ArrayList<>();
+        long total = _totalBytes;
+        Iterator<Map.Entry<String, Long>> it = _entries.entrySet().iterator();
+        while (total > _maxBytes && it.hasNext())
+        {
+            Map.Entry<String, Long> entry = it.next();
+            if (entry.getKey().equals(_pinnedKey))
+                continue;
+            evict.add(entry.getKey());
+            total -= entry.getValue();
+        }
+
+        for (String key : evict)
+            Remove(key);
+    }
+}
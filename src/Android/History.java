@@ -0,0 +1,91 @@
+package com.fuse.StreamingPlayer;
+
+/**
+ * Playback history as a fixed capacity ring buffer of track UIDs.
+ *
+ * Index 0 of PeekNth is the most recently pushed entry. When the buffer is full the
+ * owner decides what to do with the oldest entry (see RemoveOldest) before pushing,
+ * so it can let go of anything it was keeping alive for it.
+ */
+final class History
+{
+    private int[] _uids;
+    private int _head = 0; // where the next push goes
+    private int _size = 0;
+
+    History(int capacity)
+    {
+        _uids = new int[Math.max(1, capacity)];
+    }
+
+    int Size()
+    {
+        return _size;
+    }
+
+    int Capacity()
+    {
+        return _uids.length;
+    }
+
+    boolean IsFull()
+    {
+        return _size == _uids.length;
+    }
+
+    private int Wrap(int i)
+    {
+        int n = _uids.length;
+        return ((i % n) + n) % n;
+    }
+
+    // The caller must make room with RemoveOldest first if IsFull()
+    void Push(int uid)
+    {
+        _uids[_head] = uid;
+        _head = Wrap(_head + 1);
+        _size += 1;
+    }
+
+    int Pop()
+    {
+        _head = Wrap(_head - 1);
+        _size -= 1;
+        return _uids[_head];
+    }
+
+    int RemoveOldest()
+    {
+        int uid = _uids[Wrap(_head - _size)];
+        _size -= 1;
+        return uid;
+    }
+
+    // n = 0 is the most recent entry
+    int PeekNth(int n)
+    {
+        return _uids[Wrap(_head - 1 - n)];
+    }
+
+    void Clear()
+    {
+        _head = 0;
+        _size = 0;
+    }
+
+    // Keeps the most recent entries. The caller must RemoveOldest down to the new
+    // capacity first.
+    void SetCapacity(int capacity)
+    {
+        capacity = Math.max(1, capacity);
+        int[] uids = new int[capacity];
+        int count = Math.min(_size, capacity);
+        for (int i = 0; i < count; i++)
+        {
+            uids[count - 1 - i] = PeekNth(i);
+        }
+        _uids = uids;
+        _size = count;
+        _head = Wrap(count);
+    }
+}
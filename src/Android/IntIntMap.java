@@ -0,0 +1,181 @@
+package com.fuse.StreamingPlayer;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map from int to int. No boxing and no allocation outside of
+ * growing, which is what we want for lookups done on every navigation.
+ *
+ * Integer.MIN_VALUE can not be used as a key.
+ */
+final class IntIntMap
+{
+    static final int EMPTY = Integer.MIN_VALUE;
+
+    private int[] _keys;
+    private int[] _values;
+    private int _size = 0;
+    private int _mask;
+
+    IntIntMap()
+    {
+        this(16);
+    }
+
+    IntIntMap(int expectedSize)
+    {
+        int capacity = 16;
+        while (capacity < expectedSize * 2)
+            capacity <<= 1;
+        Allocate(capacity);
+    }
+
+    private void Allocate(int capacity)
+    {
+        _keys = new int[capacity];
+        _values = new int[capacity];
+        Arrays.fill(_keys, EMPTY);
+        _mask = capacity - 1;
+    }
+
+    private int Slot(int key)
+    {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & _mask;
+    }
+
+    int Size()
+    {
+        return _size;
+    }
+
+    int Get(int key, int missing)
+    {
+        int slot = Slot(key);
+        while (true)
+        {
+            int k = _keys[slot];
+            if (k == key)
+                return _values[slot];
+            if (k == EMPTY)
+                return missing;
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    boolean ContainsKey(int key)
+    {
+        int slot = Slot(key);
+        while (true)
+        {
+            int k = _keys[slot];
+            if (k == key)
+                return true;
+            if (k == EMPTY)
+                return false;
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    void Put(int key, int value)
+    {
+        int slot = Slot(key);
+        while (true)
+        {
+            int k = _keys[slot];
+            if (k == key)
+            {
+                _values[slot] = value;
+                return;
+            }
+            if (k == EMPTY)
+            {
+                _keys[slot] = key;
+                _values[slot] = value;
+                _size += 1;
+                if (_size * 2 > _keys.length)
+                    Grow();
+                return;
+            }
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    // Adds delta to the value for key, inserting it with a value of delta if missing.
+    // Returns the new value.
+    int Add(int key, int delta)
+    {
+        int slot = Slot(key);
+        while (true)
+        {
+            int k = _keys[slot];
+            if (k == key)
+            {
+                _values[slot] += delta;
+                return _values[slot];
+            }
+            if (k == EMPTY)
+            {
+                Put(key, delta);
+                return delta;
+            }
+            slot = (slot + 1) & _mask;
+        }
+    }
+
+    boolean Remove(int key)
+    {
+        int slot = Slot(key);
+        while (true)
+        {
+            int k = _keys[slot];
+            if (k == EMPTY)
+                return false;
+            if (k == key)
+                break;
+            slot = (slot + 1) & _mask;
+        }
+
+        // Backward shift deletion, keeps probe chains intact without tombstones
+        int hole = slot;
+        int next = (hole + 1) & _mask;
+        while (_keys[next] != EMPTY)
+        {
+            int home = Slot(_keys[next]);
+            boolean movable = hole <= next
+                    ? (home <= hole || home > next)
+                    : (home <= hole && home > next);
+            if (movable)
+            {
+                _keys[hole] = _keys[next];
+                _values[hole] = _values[next];
+                hole = next;
+            }
+            next = (next + 1) & _mask;
+        }
+        _keys[hole] = EMPTY;
+        _size -= 1;
+        return true;
+    }
+
+    void Clear()
+    {
+        if (_size == 0)
+            return;
+        Arrays.fill(_keys, EMPTY);
+        _size = 0;
+    }
+
+    private void Grow()
+    {
+        int[] keys = _keys;
+        int[] values = _values;
+        Allocate(keys.length * 2);
+        _size = 0;
+        for (int i = 0; i < keys.length; i++)
+        {
+            if (keys[i] != EMPTY)
+                Put(keys[i], values[i]);
+        }
+    }
+}
@@ -0,0 +1,646 @@
+package com.fuse.StreamingPlayer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Downloads tracks to keep for offline playback.
+ *
+ * A track is fetched as fixed size byte ranges that run in parallel on a shared pool,
+ * so the concurrency limit holds across every download in progress. Chunks are written
+ * straight to their place in a .part file and a small .meta file records which ones are
+ * done, so a cancelled or interrupted download carries on where it stopped. Once every
+ * chunk is in the .part file is renamed and the track is downloaded.
+ *
+ * Servers that ignore ranges, or do ranges but will not say how long the file is, are
+ * downloaded in one go and start over if interrupted.
+ *
+ * Unlike the DiskCache nothing here is ever evicted, files stay until RemoveDownload.
+ *
+ * There is no Android in here so it can be tested on a plain JVM, see QueueEngine/.
+ */
+public final class OfflineDownloads
+{
+    public interface Listener
+    {
+        // totalBytes is -1 when the server does not say
+        void OnDownloadProgress(String url, long downloadedBytes, long totalBytes);
+        void OnDownloadFinished(String url, boolean succeeded);
+    }
+
+    static final int CHUNK_SIZE = 1024 * 1024;
+    static final int CONCURRENCY = 3;
+    static final int CHUNK_ATTEMPTS = 3;
+    static final int BUFFER_SIZE = 16 * 1024;
+    static final int META_MAGIC = 0x5350444d; // "SPDM"
+    static final String FILE_SUFFIX = ".audio";
+    static final String PART_SUFFIX = ".part";
+    static final String META_SUFFIX = ".meta";
+
+    private final File _directory;
+    private final PlaybackMetrics _metrics;
+    private final Listener _listener;
+    private final ThreadPoolExecutor _executor;
+    private volatile int _connectTimeoutMs = 15000;
+    private volatile int _readTimeoutMs = 20000;
+
+    // Guarded by _downloads
+    private final HashMap<String, Download> _downloads = new HashMap<>();
+    private int _nextGeneration = 0;
+
+    private static final class Download
+    {
+        final String Url;
+        final File Part;
+        final File Meta;
+        // Cancelling and downloading the same track again makes a new generation. Chunks
+        // of the old one may still be finishing and must not write its progress.
+        final int Generation;
+        long Length = -1;
+        boolean[] ChunksDone;
+        int ChunksLeft;
+        long DownloadedBytes;
+        // Only set through Stop, see OpenPart
+        volatile boolean Stopped = false;
+
+        Download(String url, File part, File meta, int generation)
+        {
+            Url = url;
+            Part = part;
+            Meta = meta;
+            Generation = generation;
+        }
+
+        long ChunkStart(int chunk)
+        {
+            return (long)chunk * CHUNK_SIZE;
+        }
+
+        long ChunkEnd(int chunk) // inclusive
+        {
+            return Math.min(ChunkStart(chunk) + CHUNK_SIZE, Length) - 1;
+        }
+    }
+
+    public OfflineDownloads(File directory, ThreadFactory threads, PlaybackMetrics metrics, Listener listener)
+    {
+        _directory = directory;
+        _directory.mkdirs();
+        _metrics = metrics;
+        _listener = listener;
+        _executor = new ThreadPoolExecutor(CONCURRENCY, CONCURRENCY, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), threads);
+        _executor.allowCoreThreadTimeOut(true);
+    }
+
+    // Lets the app ask before the service is running
+    public static boolean IsDownloaded(File directory, String url)
+    {
+        return new File(directory, DiskCache.KeyFor(url) + FILE_SUFFIX).exists();
+    }
+
+    public int Concurrency()
+    {
+        return _executor.getMaximumPoolSize();
+    }
+
+    public void SetConcurrency(int concurrency)
+    {
+        concurrency = Math.max(1, concurrency);
+        // The core size may never be above the maximum, so the order depends on the direction
+        if (concurrency > _executor.getMaximumPoolSize())
+        {
+            _executor.setMaximumPoolSize(concurrency);
+            _executor.setCorePoolSize(concurrency);
+        }
+        else
+        {
+            _executor.setCorePoolSize(concurrency);
+            _executor.setMaximumPoolSize(concurrency);
+        }
+    }
+
+    public void SetTimeouts(int connectTimeoutMs, int readTimeoutMs)
+    {
+        _connectTimeoutMs = connectTimeoutMs;
+        _readTimeoutMs = readTimeoutMs;
+    }
+
+    // The downloaded file, or null if the track is not (completely) downloaded
+    public File GetFile(String url)
+    {
+        File file = FileFor(url, FILE_SUFFIX);
+        return file.exists() ? file : null;
+    }
+
+    public boolean IsDownloaded(String url)
+    {
+        return FileFor(url, FILE_SUFFIX).exists();
+    }
+
+    private File FileFor(String url, String suffix)
+    {
+        return new File(_directory, DiskCache.KeyFor(url) + suffix);
+    }
+
+    //--------------------------
+
+    // The url must be http or https
+    public void Download(String url)
+    {
+        if (url == null)
+            return;
+
+        if (IsDownloaded(url))
+        {
+            _listener.OnDownloadFinished(url, true);
+            return;
+        }
+
+        final Download download;
+        synchronized (_downloads)
+        {
+            if (_downloads.containsKey(url))
+                return;
+            download = new Download(url, FileFor(url, PART_SUFFIX), FileFor(url, META_SUFFIX), _nextGeneration++);
+            _downloads.put(url, download);
+        }
+        _metrics.Increment("download.started");
+        _executor.execute(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                Start(download);
+            }
+        });
+    }
+
+    // Stops the download but keeps what we have so far to resume from
+    public void Cancel(String url)
+    {
+        Download download;
+        synchronized (_downloads)
+        {
+            download = _downloads.remove(url);
+        }
+        if (download != null)
+        {
+            Stop(download);
+            _metrics.Increment("download.cancelled");
+        }
+    }
+
+    // Chunks that are still running can not open the .part file again once the download
+    // is stopped, so what we delete here stays deleted
+    public void Remove(String url)
+    {
+        Cancel(url);
+        FileFor(url, FILE_SUFFIX).delete();
+        FileFor(url, PART_SUFFIX).delete();
+        FileFor(url, META_SUFFIX).delete();
+    }
+
+    public void Shutdown()
+    {
+        Download[] downloads;
+        synchronized (_downloads)
+        {
+            downloads = _downloads.values().toArray(new Download[0]);
+            _downloads.clear();
+        }
+        for (Download download : downloads)
+        {
+            Stop(download);
+        }
+        _executor.shutdownNow();
+    }
+
+    private static void Stop(Download download)
+    {
+        synchronized (download)
+        {
+            download.Stopped = true;
+        }
+    }
+
+    // Opening the .part file and stopping the download exclude each other. A chunk that
+    // is already writing when the download is removed writes to a file that is gone.
+    private static RandomAccessFile OpenPart(Download download) throws IOException
+    {
+        synchronized (download)
+        {
+            if (download.Stopped)
+                throw new IOException("Stopped");
+            return new RandomAccessFile(download.Part, "rw");
+        }
+    }
+
+    //--------------------------
+
+    // A negative start asks for the whole file
+    private HttpURLConnection Open(String url, long start, long end) throws IOException
+    {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setConnectTimeout(_connectTimeoutMs);
+        connection.setReadTimeout(_readTimeoutMs);
+        if (start >= 0)
+            connection.setRequestProperty("Range", "bytes=" + start + "-" + end);
+        return connection;
+    }
+
+    private void Start(Download download)
+    {
+        if (download.Stopped)
+            return;
+
+        if (LoadMeta(download))
+        {
+            _metrics.Increment("download.resumed");
+            if (download.ChunksLeft == 0)
+            {
+                // We got as far as the last chunk but not to renaming the file
+                Finish(download);
+                return;
+            }
+            _listener.OnDownloadProgress(download.Url, download.DownloadedBytes, download.Length);
+            ScheduleChunks(download, 0);
+            return;
+        }
+
+        // The first chunk tells us whether the server does ranges and how long the file is
+        HttpURLConnection connection = null;
+        try
+        {
+            connection = Open(download.Url, 0, CHUNK_SIZE - 1);
+            int status = connection.getResponseCode();
+            if (status == 206)
+            {
+                download.Length = TotalLengthOf(connection.getHeaderField("Content-Range"));
+            }
+            if (status == 206 && download.Length > 0)
+            {
+                int chunks = (int)((download.Length + CHUNK_SIZE - 1) / CHUNK_SIZE);
+                download.ChunksDone = new boolean[chunks];
+                download.ChunksLeft = chunks;
+                RandomAccessFile part = OpenPart(download);
+                try
+                {
+                    part.setLength(download.Length);
+                }
+                finally
+                {
+                    part.close();
+                }
+                WriteChunk(download, 0, connection.getInputStream());
+                ChunkDone(download, 0);
+                ScheduleChunks(download, 1);
+            }
+            else if (status == 206)
+            {
+                // Ranges work, but without the total there is no knowing how many chunks
+                // there are. Ask again for the whole file.
+                _metrics.Increment("download.unknownLength");
+                connection.disconnect();
+                connection = Open(download.Url, -1, -1);
+                if (connection.getResponseCode() == 200)
+                {
+                    download.Length = connection.getContentLength();
+                    DownloadWhole(download, connection.getInputStream());
+                }
+                else
+                {
+                    Fail(download);
+                }
+            }
+            else if (status == 200)
+            {
+                download.Length = connection.getContentLength();
+                DownloadWhole(download, connection.getInputStream());
+            }
+            else
+            {
+                Fail(download);
+            }
+        }
+        catch (IOException e)
+        {
+            Fail(download);
+        }
+        finally
+        {
+            if (connection != null)
+                connection.disconnect();
+        }
+    }
+
+    private void ScheduleChunks(final Download download, int first)
+    {
+        for (int i = first; i < download.ChunksDone.length; i++)
+        {
+            if (download.ChunksDone[i])
+                continue;
+            final int chunk = i;
+            _executor.execute(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    FetchChunk(download, chunk);
+                }
+            });
+        }
+    }
+
+    private void FetchChunk(Download download, int chunk)
+    {
+        for (int attempt = 0; attempt < CHUNK_ATTEMPTS; attempt++)
+        {
+            if (download.Stopped)
+                return;
+
+            HttpURLConnection connection = null;
+            try
+            {
+                connection = Open(download.Url, download.ChunkStart(chunk), download.ChunkEnd(chunk));
+                if (connection.getResponseCode() != 206)
+                    throw new IOException("Range not honoured");
+                WriteChunk(download, chunk, connection.getInputStream());
+                ChunkDone(download, chunk);
+                return;
+            }
+            catch (IOException e)
+            {
+                if (!download.Stopped)
+                    _metrics.Increment("download.chunkRetries");
+            }
+            finally
+            {
+                if (connection != null)
+                    connection.disconnect();
+            }
+        }
+        Fail(download);
+    }
+
+    // Each chunk has its own handle on the .part file, they never write to the same bytes
+    private void WriteChunk(Download download, int chunk, InputStream in) throws IOException
+    {
+        long position = download.ChunkStart(chunk);
+        long remaining = download.ChunkEnd(chunk) - position + 1;
+        RandomAccessFile part;
+        try
+        {
+            part = OpenPart(download);
+        }
+        catch (IOException e)
+        {
+            in.close();
+            throw e;
+        }
+        try
+        {
+            part.seek(position);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (remaining > 0)
+            {
+                if (download.Stopped)
+                    throw new IOException("Stopped");
+                int read = in.read(buffer, 0, (int)Math.min(buffer.length, remaining));
+                if (read < 0)
+                    throw new IOException("Chunk ended early");
+                part.write(buffer, 0, read);
+                remaining -= read;
+            }
+        }
+        finally
+        {
+            in.close();
+            part.close();
+        }
+    }
+
+    private void ChunkDone(Download download, int chunk) throws IOException
+    {
+        boolean finished;
+        long downloaded;
+        synchronized (download)
+        {
+            if (download.ChunksDone[chunk])
+                return;
+            download.ChunksDone[chunk] = true;
+            download.ChunksLeft -= 1;
+            download.DownloadedBytes += download.ChunkEnd(chunk) - download.ChunkStart(chunk) + 1;
+            downloaded = download.DownloadedBytes;
+            finished = download.ChunksLeft == 0;
+            if (!finished)
+            {
+                WriteMeta(download);
+            }
+        }
+        _metrics.Add("download.bytes", download.ChunkEnd(chunk) - download.ChunkStart(chunk) + 1);
+
+        if (finished)
+        {
+            Finish(download);
+        }
+        else
+        {
+            _listener.OnDownloadProgress(download.Url, downloaded, download.Length);
+        }
+    }
+
+    private void DownloadWhole(Download download, InputStream in) throws IOException
+    {
+        download.Meta.delete();
+        RandomAccessFile out;
+        try
+        {
+            out = OpenPart(download);
+        }
+        catch (IOException e)
+        {
+            in.close();
+            throw e;
+        }
+        try
+        {
+            out.setLength(0);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            long total = 0;
+            long lastReport = 0;
+            int read;
+            while ((read = in.read(buffer)) >= 0)
+            {
+                if (download.Stopped)
+                    return;
+                out.write(buffer, 0, read);
+                total += read;
+                if (total - lastReport >= CHUNK_SIZE)
+                {
+                    lastReport = total;
+                    _listener.OnDownloadProgress(download.Url, total, download.Length);
+                }
+            }
+            _metrics.Add("download.bytes", total);
+            if (download.Length >= 0 && total != download.Length)
+            {
+                throw new IOException("Download ended early");
+            }
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+        Finish(download);
+    }
+
+    private void Finish(Download download)
+    {
+        synchronized (_downloads)
+        {
+            if (_downloads.get(download.Url) != download)
+                return;
+            _downloads.remove(download.Url);
+        }
+        download.Meta.delete();
+        boolean succeeded = download.Part.renameTo(FileFor(download.Url, FILE_SUFFIX));
+        _metrics.Increment(succeeded ? "download.completed" : "download.failed");
+        _listener.OnDownloadFinished(download.Url, succeeded);
+    }
+
+    // What we got so far stays on disk, downloading the track again resumes it
+    private void Fail(Download download)
+    {
+        Stop(download);
+        synchronized (_downloads)
+        {
+            if (_downloads.get(download.Url) != download)
+                return;
+            _downloads.remove(download.Url);
+        }
+        _metrics.Increment("download.failed");
+        _listener.OnDownloadFinished(download.Url, false);
+    }
+
+    //--------------------------
+    // Progress of a partial download: the length, the chunk size it was split with and
+    // one byte per chunk
+
+    private void WriteMeta(Download download) throws IOException
+    {
+        // Held while writing so a newer generation can not start in between the check
+        // and the rename
+        synchronized (_downloads)
+        {
+            Download current = _downloads.get(download.Url);
+            if (current == null || current.Generation != download.Generation)
+            {
+                _metrics.Increment("download.staleMetaWrites");
+                return;
+            }
+            WriteMetaFile(download);
+        }
+    }
+
+    private void WriteMetaFile(Download download) throws IOException
+    {
+        File temp = new File(download.Meta.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try
+        {
+            out.writeInt(META_MAGIC);
+            out.writeLong(download.Length);
+            out.writeInt(CHUNK_SIZE);
+            out.writeInt(download.ChunksDone.length);
+            for (boolean done : download.ChunksDone)
+            {
+                out.writeBoolean(done);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        if (!temp.renameTo(download.Meta))
+        {
+            temp.delete();
+        }
+    }
+
+    private boolean LoadMeta(Download download)
+    {
+        if (!download.Meta.exists() || !download.Part.exists())
+            return false;
+        try
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(download.Meta));
+            try
+            {
+                if (in.readInt() != META_MAGIC)
+                    return false;
+                long length = in.readLong();
+                if (in.readInt() != CHUNK_SIZE || download.Part.length() != length)
+                    return false;
+                boolean[] done = new boolean[in.readInt()];
+                if (done.length != (length + CHUNK_SIZE - 1) / CHUNK_SIZE)
+                    return false;
+                int left = 0;
+                long downloaded = 0;
+                download.Length = length;
+                for (int i = 0; i < done.length; i++)
+                {
+                    done[i] = in.readBoolean();
+                    if (done[i])
+                        downloaded += download.ChunkEnd(i) - download.ChunkStart(i) + 1;
+                    else
+                        left += 1;
+                }
+                download.ChunksDone = done;
+                download.ChunksLeft = left;
+                download.DownloadedBytes = downloaded;
+                return true;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    // "bytes 0-1048575/5242880" -> 5242880, -1 if the total is not given
+    static long TotalLengthOf(String contentRange)
+    {
+        if (contentRange == null)
+            return -1;
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0)
+            return -1;
+        try
+        {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        }
+        catch (NumberFormatException e)
+        {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,80 @@
+package com.fuse.StreamingPlayer;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Named counters kept by the playback engine. Keys are grouped by the part of the
+ * service that owns them, e.g. "gapless.warmTransitions".
+ *
+ * Plain Java so the parts that count things can be tested off the device. The
+ * service does the logging, see StreamingAudioService.DumpMetrics.
+ */
+public final class PlaybackMetrics
+{
+    private final LinkedHashMap<String, Double> _values = new LinkedHashMap<>();
+
+    public synchronized void Increment(String key)
+    {
+        Add(key, 1);
+    }
+
+    public synchronized void Add(String key, double amount)
+    {
+        Double current = _values.get(key);
+        _values.put(key, (current == null ? 0 : current) + amount);
+    }
+
+    public synchronized void Set(String key, double value)
+    {
+        _values.put(key, value);
+    }
+
+    public synchronized double Get(String key)
+    {
+        Double current = _values.get(key);
+        return current == null ? 0 : current;
+    }
+
+    public synchronized void Max(String key, double value)
+    {
+        Double current = _values.get(key);
+        if (current == null || value > current)
+        {
+            _values.put(key, value);
+        }
+    }
+
+    // Removes every counter whose key starts with prefix
+    public synchronized void Reset(String prefix)
+    {
+        Iterator<String> keys = _values.keySet().iterator();
+        while (keys.hasNext())
+        {
+            if (keys.next().startsWith(prefix))
+            {
+                keys.remove();
+            }
+        }
+    }
+
+    public synchronized String[] Keys()
+    {
+        return _values.keySet().toArray(new String[_values.size()]);
+    }
+
+    public synchronized String Describe(String prefix)
+    {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Double> entry : _values.entrySet())
+        {
+            if (prefix != null && !entry.getKey().startsWith(prefix))
+                continue;
+            if (sb.length() > 0)
+                sb.append(", ");
+            sb.append(entry.getKey()).append('=').append(entry.getValue());
+        }
+        return sb.toString();
+    }
+}
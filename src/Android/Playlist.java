@@ -0,0 +1,161 @@
+package com.fuse.StreamingPlayer;
+
+/**
+ * The playlist as a packed array of track UIDs with a UID -> index map kept up to
+ * date on every change, so finding where a track is in the playlist is constant time
+ * and navigating never allocates.
+ *
+ * Changes cost the size of the change plus, for inserts, removals and moves, the
+ * number of entries that shift position.
+ */
+final class Playlist
+{
+    private int[] _uids = new int[16];
+    private int _size = 0;
+    private final IntIntMap _indexOf = new IntIntMap();
+
+    // If a UID is in the playlist more than once the map holds its first index. Keeping
+    // that right under arbitrary changes is fiddly so we just rebuild the map instead.
+    private boolean _hasDuplicates = false;
+
+    int Size()
+    {
+        return _size;
+    }
+
+    int Get(int index)
+    {
+        return _uids[index];
+    }
+
+    // -1 if the track is not in the playlist
+    int IndexOf(int uid)
+    {
+        return _indexOf.Get(uid, -1);
+    }
+
+    boolean Contains(int uid)
+    {
+        return _indexOf.ContainsKey(uid);
+    }
+
+    void Clear()
+    {
+        _size = 0;
+        _indexOf.Clear();
+        _hasDuplicates = false;
+    }
+
+    void Set(int[] uids, int count)
+    {
+        Clear();
+        Insert(0, uids, count);
+    }
+
+    void Insert(int index, int[] uids, int count)
+    {
+        if (index < 0 || index > _size)
+            index = _size;
+
+        EnsureCapacity(_size + count);
+        System.arraycopy(_uids, index, _uids, index + count, _size - index);
+        System.arraycopy(uids, 0, _uids, index, count);
+        _size += count;
+
+        if (!_hasDuplicates)
+        {
+            for (int i = 0; i < count; i++)
+            {
+                if (_indexOf.ContainsKey(uids[i]))
+                {
+                    _hasDuplicates = true;
+                    break;
+                }
+                _indexOf.Put(uids[i], index + i);
+            }
+        }
+
+        if (_hasDuplicates)
+        {
+            RebuildIndex();
+            return;
+        }
+
+        for (int i = index + count; i < _size; i++)
+            _indexOf.Put(_uids[i], i);
+    }
+
+    void Remove(int index, int count)
+    {
+        if (index < 0 || index >= _size || count <= 0)
+            return;
+        count = Math.min(count, _size - index);
+
+        if (!_hasDuplicates)
+        {
+            for (int i = index; i < index + count; i++)
+                _indexOf.Remove(_uids[i]);
+        }
+
+        System.arraycopy(_uids, index + count, _uids, index, _size - index - count);
+        _size -= count;
+
+        if (_hasDuplicates)
+        {
+            RebuildIndex();
+            return;
+        }
+
+        for (int i = index; i < _size; i++)
+            _indexOf.Put(_uids[i], i);
+    }
+
+    void Move(int from, int to)
+    {
+        if (from < 0 || from >= _size || to < 0 || to >= _size || from == to)
+            return;
+
+        int uid = _uids[from];
+        if (from < to)
+            System.arraycopy(_uids, from + 1, _uids, from, to - from);
+        else
+            System.arraycopy(_uids, to, _uids, to + 1, from - to);
+        _uids[to] = uid;
+
+        if (_hasDuplicates)
+        {
+            RebuildIndex();
+            return;
+        }
+
+        int lo = Math.min(from, to);
+        int hi = Math.max(from, to);
+        for (int i = lo; i <= hi; i++)
+            _indexOf.Put(_uids[i], i);
+    }
+
+    private void EnsureCapacity(int capacity)
+    {
+        if (capacity <= _uids.length)
+            return;
+        int newCapacity = _uids.length * 2;
+        while (newCapacity < capacity)
+            newCapacity *= 2;
+        int[] uids = new int[newCapacity];
+        System.arraycopy(_uids, 0, uids, 0, _size);
+        _uids = uids;
+    }
+
+    private void RebuildIndex()
+    {
+        _indexOf.Clear();
+        _hasDuplicates = false;
+        // Walk backwards so the first occurrence of a UID is the one that ends up in the map
+        for (int i = _size - 1; i >= 0; i--)
+        {
+            if (_indexOf.ContainsKey(_uids[i]))
+                _hasDuplicates = true;
+            _indexOf.Put(_uids[i], i);
+        }
+    }
+}
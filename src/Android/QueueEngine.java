@@ -0,0 +1,766 @@
+package com.fuse.StreamingPlayer;
+
+/**
+ * The playlist, the playback history and where we are in each of them.
+ *
+ * This is plain Java with no Android in it so the navigation logic can be built and
+ * benchmarked on its own, see QueueEngine/ at the root of the repo. It only knows
+ * track UIDs. Whoever owns the Track objects listens for OnTrackReleased to know when
+ * nothing can navigate to a track anymore.
+ *
+ * The Move* methods only change the focus of the playlist & history and return the
+ * UID to make current, or -1 if there is nowhere to go.
+ *
+ * In shuffle mode the playlist itself is left alone. Instead the next & previous
+ * tracks are looked up through a seeded permutation of the playlist indices, see
+ * ShuffleOrder. Nothing is generated up front so turning shuffle on or off costs the
+ * same whatever the length of the playlist.
+ *
+ * A shuffled pass plays every track once. Moving forward skips the tracks the pass has
+ * played already, so editing the playlist mid-pass (which reshuffles what is left, see
+ * ShuffleOrder) neither repeats a track nor loses one. Each playlist entry carries the
+ * number of the pass that last played it, which keeps starting a new pass O(1).
+ *
+ * With repeat on, moving past either end of the playlist (or of the shuffled pass)
+ * wraps around to the other end.
+ */
+final class QueueEngine
+{
+    interface Listener
+    {
+        void OnTrackReleased(int uid);
+    }
+
+    static final int HISTORY_DEPTH = 200;
+
+    private final Listener _listener;
+    private final Playlist _playlist = new Playlist();
+    private final History _history;
+    private final IntIntMap _refs = new IntIntMap(); // uid -> number of playlist & history slots holding it (+1 when current)
+    private int _playlistIndex = -1;
+    private int _historyIndex = -1; // set to -1 every time we move structurally.
+    private final ShuffleOrder _shuffleOrder = new ShuffleOrder();
+    private boolean _shuffle = false;
+    private boolean _repeat = false;
+    private int _shuffleStart = 0; // position in the shuffle order the current pass started at
+    private int[] _passPlayed = new int[0]; // per playlist entry, the pass that last played it
+    private int _pass = 0;
+    private int _unplayed = 0; // entries the current pass has yet to play
+    private int _playlistVersion = 0; // changes whenever the playlist does, not when moving in it
+
+    QueueEngine(Listener listener)
+    {
+        this(listener, HISTORY_DEPTH);
+    }
+
+    QueueEngine(Listener listener, int historyDepth)
+    {
+        _listener = listener;
+        _history = new History(historyDepth);
+    }
+
+    //--------------------------
+    // State
+
+    int PlaylistSize()
+    {
+        return _playlist.Size();
+    }
+
+    int PlaylistGet(int index)
+    {
+        return _playlist.Get(index);
+    }
+
+    int PlaylistIndexOf(int uid)
+    {
+        return _playlist.IndexOf(uid);
+    }
+
+    int PlaylistVersion()
+    {
+        return _playlistVersion;
+    }
+
+    int PlaylistIndex()
+    {
+        return _playlistIndex;
+    }
+
+    int HistorySize()
+    {
+        return _history.Size();
+    }
+
+    int HistoryDepth()
+    {
+        return _history.Capacity();
+    }
+
+    // n = 0 is the most recent entry
+    int HistoryPeekNth(int n)
+    {
+        return _history.PeekNth(n);
+    }
+
+    int HistoryIndex()
+    {
+        return _historyIndex;
+    }
+
+    boolean IsShuffled()
+    {
+        return _shuffle;
+    }
+
+    boolean IsRepeating()
+    {
+        return _repeat;
+    }
+
+    long ShuffleSeed()
+    {
+        return _shuffleOrder.Seed();
+    }
+
+    int ShuffleStart()
+    {
+        return _shuffleStart;
+    }
+
+    //--------------------------
+    // Tracks are kept for as long as something can still navigate to them. Once the
+    // last playlist or history slot lets go of a uid the listener is told.
+
+    void Retain(int uid)
+    {
+        if (uid >= 0)
+        {
+            _refs.Add(uid, 1);
+        }
+    }
+
+    void Release(int uid)
+    {
+        if (uid >= 0 && _refs.Add(uid, -1) <= 0)
+        {
+            _refs.Remove(uid);
+            _listener.OnTrackReleased(uid);
+        }
+    }
+
+    boolean IsRetained(int uid)
+    {
+        return _refs.ContainsKey(uid);
+    }
+
+    private void PushToHistory(int uid)
+    {
+        if (_history.IsFull())
+        {
+            Release(_history.RemoveOldest());
+        }
+        _history.Push(uid);
+        Retain(uid);
+    }
+
+    void SetHistoryDepth(int depth)
+    {
+        depth = Math.max(1, depth);
+        while (_history.Size() > depth)
+        {
+            Release(_history.RemoveOldest());
+        }
+        _history.SetCapacity(depth);
+        // If we were further back than we now remember, carry on from the oldest entry left
+        _historyIndex = Math.min(_historyIndex, _history.Size() - 1);
+    }
+
+    private void PushCurrentToHistory()
+    {
+        int cur = _playlistIndex;
+        if (cur >= 0)
+        {
+            PushToHistory(_playlist.Get(cur));
+        }
+    }
+
+    // Called when the current track changes, whichever way it happened
+    void CurrentTrackChanged(int uid)
+    {
+        // The Move* methods have already put us on the right entry, which matters when a
+        // uid is in the playlist more than once
+        if (_playlistIndex < 0 || _playlist.Get(_playlistIndex) != uid)
+        {
+            _playlistIndex = _playlist.IndexOf(uid);
+        }
+        MarkPlayed(_playlistIndex);
+    }
+
+    //--------------------------
+    // Query Playlist and History
+
+    // The playlist index 'offset' steps from the current one in play order. Past either
+    // end this wraps when repeating and is -1 otherwise. Without a current index, offset 1
+    // is the first track to play.
+    private int PlayOrderIndex(int offset, boolean wrap)
+    {
+        int size = _playlist.Size();
+        if (size == 0)
+        {
+            return -1;
+        }
+        int position = _playlistIndex;
+        if (_shuffle && _playlistIndex >= 0)
+        {
+            position = ShufflePosition(_playlistIndex);
+        }
+        if (_shuffle && offset > 0)
+        {
+            return ShuffledIndexAhead(position, offset, wrap);
+        }
+        int p = position + offset;
+        if (p < 0 || p >= size)
+        {
+            if (!wrap)
+            {
+                return -1;
+            }
+            if (position < 0 && offset < 0)
+            {
+                p = offset; // stepping back from outside the playlist lands on its end
+            }
+            p %= size;
+            if (p < 0)
+            {
+                p += size;
+            }
+        }
+        if (!_shuffle)
+        {
+            return p;
+        }
+        return ShuffledIndex(p);
+    }
+
+    // Forward in a shuffled pass is the offset'th entry after 'position' the pass has not
+    // played yet. Once the pass is played out the next one carries on in the same order.
+    private int ShuffledIndexAhead(int position, int offset, boolean wrap)
+    {
+        int size = _playlist.Size();
+        int found = 0;
+        for (int p = position + 1; p <= position + size && found < _unplayed; p++)
+        {
+            int index = ShuffledIndex(p);
+            if (_passPlayed[index] != _pass)
+            {
+                found++;
+                if (found == offset)
+                {
+                    return index;
+                }
+            }
+        }
+        if (!wrap)
+        {
+            return -1;
+        }
+        return ShuffledIndex(position + offset - found);
+    }
+
+    // The playlist index at 'position' steps into the current pass
+    private int ShuffledIndex(int position)
+    {
+        int size = _playlist.Size();
+        long p = ((long)position % size + _shuffleStart) % size;
+        if (p < 0)
+        {
+            p += size;
+        }
+        return _shuffleOrder.IndexAt((int)p, size);
+    }
+
+    private int PlayOrderIndex(int offset)
+    {
+        return PlayOrderIndex(offset, _repeat);
+    }
+
+    // How far into the current shuffled pass the playlist index is
+    private int ShufflePosition(int index)
+    {
+        int size = _playlist.Size();
+        int p = _shuffleOrder.PositionOf(index, size) - (_shuffleStart % size);
+        return p < 0 ? p + size : p;
+    }
+
+    // The uid 'offset' steps from the current track in play order, -1 if there is none
+    int PlayOrderUID(int offset)
+    {
+        int i = PlayOrderIndex(offset);
+        return i < 0 ? -1 : _playlist.Get(i);
+    }
+
+    int PlaylistNextTrackUID()
+    {
+        return PlayOrderUID(1);
+    }
+
+    int PlaylistPrevTrackUID()
+    {
+        return PlayOrderUID(-1);
+    }
+
+    int HistoryNextTrackUID()
+    {
+        int i = _historyIndex - 1;
+        if (i < 0)
+        {
+            return -1;
+        }
+        return _history.PeekNth(i);
+    }
+
+    int HistoryPrevTrackUID()
+    {
+        int i = _historyIndex + 1;
+        if (i >= _history.Size())
+        {
+            return -1;
+        }
+        return _history.PeekNth(i);
+    }
+
+    // The track MoveForwardInHistory() would move to. This is what we play when the current track completes
+    int UpcomingTrackUID()
+    {
+        int uid = HistoryNextTrackUID();
+        if (uid >= 0)
+        {
+            return uid;
+        }
+        return PlaylistNextTrackUID();
+    }
+
+    // True when UpcomingTrackUID() is only there because repeat wraps back to the start
+    boolean UpcomingWrapsAround()
+    {
+        return _repeat && HistoryNextTrackUID() < 0
+            && PlayOrderIndex(1, false) < 0 && PlayOrderIndex(1, true) >= 0;
+    }
+
+    //--------------------------
+    // Navigation
+
+    void DropFuture()
+    {
+        if (_historyIndex>-1)
+        {
+            for (int i = 0; i < _historyIndex; i++)
+            {
+                Release(_history.Pop());
+            }
+            _historyIndex = -1;
+        }
+    }
+
+    // Moving structurally starts a new branch of history
+    private void LeaveHistory()
+    {
+        // If we were playing from history then we dont want to push the current
+        // track to history as it is already there.
+        boolean wasntPlayingFromHistory = _historyIndex == -1;
+
+        // If we were in the history then moving structurally starts making a new
+        // history. This means we drop the future.
+        DropFuture();
+
+        if (wasntPlayingFromHistory)
+        {
+            PushCurrentToHistory();
+        }
+    }
+
+    int SetCurrentPlaylistTrack(int trackUID)
+    {
+        int index = _playlist.IndexOf(trackUID);
+        if (index > -1)
+        {
+            LeaveHistory();
+            _playlistIndex = index;
+            MarkPlayed(index);
+            return trackUID;
+        }
+        else
+        {
+            return -1;
+        }
+    }
+
+    int MoveToNextPlaylistTrack()
+    {
+        int index = PlayOrderIndex(1);
+        if (index < 0)
+        {
+            return -1;
+        }
+        LeaveHistory();
+        if (_shuffle && _passPlayed[index] == _pass)
+        {
+            // Everything has had its turn, the next pass starts here
+            StartPass(index);
+        }
+        // Modify our position in the playlist
+        _playlistIndex = index;
+        MarkPlayed(index);
+        return _playlist.Get(index);
+    }
+
+    int MoveToPrevPlaylistTrack()
+    {
+        int index = PlayOrderIndex(-1);
+        if (index < 0)
+        {
+            return -1;
+        }
+        LeaveHistory();
+        // Modify our position in the playlist
+        _playlistIndex = index;
+        MarkPlayed(index);
+        return _playlist.Get(index);
+    }
+
+    int MoveBackInHistory()
+    {
+        int uid = HistoryPrevTrackUID();
+        if (uid >=0)
+        {
+            _historyIndex += 1;
+            int playlistIndex = _playlist.IndexOf(uid); // -1 if not found
+            if (playlistIndex >= 0)
+            {
+                _playlistIndex = playlistIndex;
+                MarkPlayed(playlistIndex);
+            }
+        }
+        return uid;
+    }
+
+    int MoveForwardInHistory()
+    {
+        int uid = HistoryNextTrackUID();
+        if (uid >=0)
+        {
+            _historyIndex -= 1;
+            int playlistIndex = _playlist.IndexOf(uid); // -1 if not found
+            if (playlistIndex >= 0)
+            {
+                _playlistIndex = playlistIndex;
+                MarkPlayed(playlistIndex);
+            }
+            return uid;
+        }
+        else
+        {
+            return MoveToNextPlaylistTrack();
+        }
+    }
+
+    //--------------------------
+    // Shuffle & repeat. A new seed gives a new order. The current track starts the shuffled
+    // pass so every other track in the playlist is played once before we run out, or
+    // before the same order starts over when repeating.
+
+    void SetShuffle(boolean shuffle, long seed)
+    {
+        _shuffle = shuffle;
+        if (shuffle)
+        {
+            _shuffleOrder.SetSeed(seed);
+            StartPass(_playlistIndex);
+        }
+    }
+
+    // Forgets what has been played and starts the pass at 'index', if there is one
+    private void StartPass(int index)
+    {
+        int size = _playlist.Size();
+        if (_passPlayed.length < size)
+        {
+            _passPlayed = new int[Math.max(size, _passPlayed.length * 2)];
+            _pass = 0;
+        }
+        _pass++;
+        _unplayed = size;
+        _shuffleStart = (index >= 0 && size > 0) ? _shuffleOrder.PositionOf(index, size) : 0;
+        MarkPlayed(index);
+    }
+
+    private void MarkPlayed(int index)
+    {
+        if (_shuffle && index >= 0 && _passPlayed[index] != _pass)
+        {
+            _passPlayed[index] = _pass;
+            _unplayed--;
+        }
+    }
+
+    // After an edit the order of what is left has changed. Starting the order at the
+    // current track keeps ShufflePosition meaningful, what has been played is kept.
+    private void RebasePass()
+    {
+        int size = _playlist.Size();
+        _shuffleStart = (_playlistIndex >= 0 && size > 0) ? _shuffleOrder.PositionOf(_playlistIndex, size) : 0;
+    }
+
+    void SetRepeat(boolean repeat)
+    {
+        _repeat = repeat;
+    }
+
+    //--------------------------
+    // Changes
+
+    void ClearHistory()
+    {
+        // neccesary when people want to set the playlist and not let it be possible
+        // to go back in history to tracks not in the playlist.
+        // Tracks only the history knew about are dropped as their last slot is released
+        while (_history.Size() > 0)
+        {
+            Release(_history.Pop());
+        }
+        _historyIndex = -1;
+    }
+
+    void ClearPlaylist()
+    {
+        for (int i = 0; i < _playlist.Size(); i++)
+        {
+            Release(_playlist.Get(i));
+        }
+        _playlist.Clear();
+        _playlistIndex = -1;
+        _playlistVersion++;
+        _unplayed = 0;
+    }
+
+    void SetPlaylist(int[] uids, int count, int currentUID)
+    {
+        for (int i = 0; i < count; i++)
+        {
+            Retain(uids[i]);
+        }
+        // Retain the new list before releasing the old one so tracks in both are kept
+        for (int i = 0; i < _playlist.Size(); i++)
+        {
+            Release(_playlist.Get(i));
+        }
+        _playlist.Set(uids, count);
+        _playlistVersion++;
+
+        _playlistIndex = _playlist.IndexOf(currentUID);
+        if (_shuffle)
+        {
+            // A new playlist is a new pass, starting at the current track if it is in it
+            StartPass(_playlistIndex);
+        }
+    }
+
+    // The incremental alternatives to SetPlaylist. They only touch the tracks that changed
+    // and keep the playlist index pointing at the same entry without searching for it.
+
+    void InsertTracks(int index, int[] uids, int count)
+    {
+        if (index < 0 || index > _playlist.Size())
+        {
+            index = _playlist.Size();
+        }
+
+        for (int i = 0; i < count; i++)
+        {
+            Retain(uids[i]);
+        }
+        _playlist.Insert(index, uids, count);
+        _playlistVersion++;
+
+        if (_playlistIndex >= index)
+        {
+            _playlistIndex += count;
+        }
+        if (_shuffle)
+        {
+            // The new tracks have not been played in this pass
+            int size = _playlist.Size();
+            int[] played = _passPlayed;
+            if (played.length < size)
+            {
+                played = new int[Math.max(size, _passPlayed.length * 2)];
+                System.arraycopy(_passPlayed, 0, played, 0, index);
+            }
+            System.arraycopy(_passPlayed, index, played, index + count, size - count - index);
+            for (int i = index; i < index + count; i++)
+            {
+                played[i] = _pass - 1;
+            }
+            _passPlayed = played;
+            _unplayed += count;
+            RebasePass();
+        }
+    }
+
+    void RemoveTracks(int index, int count)
+    {
+        if (index < 0 || index >= _playlist.Size() || count <= 0)
+        {
+            return;
+        }
+        count = Math.min(count, _playlist.Size() - index);
+
+        for (int i = index; i < index + count; i++)
+        {
+            Release(_playlist.Get(i));
+        }
+        _playlist.Remove(index, count);
+        _playlistVersion++;
+
+        if (_shuffle)
+        {
+            for (int i = index; i < index + count; i++)
+            {
+                if (_passPlayed[i] != _pass)
+                {
+                    _unplayed--;
+                }
+            }
+            System.arraycopy(_passPlayed, index + count, _passPlayed, index, _playlist.Size() - index);
+        }
+
+        int cur = _playlistIndex;
+        if (cur >= index + count)
+        {
+            _playlistIndex -= count;
+        }
+        else if (cur >= index)
+        {
+            // The current track keeps playing but is no longer in the playlist,
+            // same as when SetPlaylist is given a list without it.
+            _playlistIndex = -1;
+        }
+        if (_shuffle)
+        {
+            RebasePass();
+        }
+    }
+
+    void MoveTrack(int from, int to)
+    {
+        int size = _playlist.Size();
+        if (from < 0 || from >= size || to < 0 || to >= size || from == to)
+        {
+            return;
+        }
+
+        _playlist.Move(from, to);
+        _playlistVersion++;
+
+        if (_shuffle)
+        {
+            int played = _passPlayed[from];
+            if (from < to)
+            {
+                System.arraycopy(_passPlayed, from + 1, _passPlayed, from, to - from);
+            }
+            else
+            {
+                System.arraycopy(_passPlayed, to, _passPlayed, to + 1, from - to);
+            }
+            _passPlayed[to] = played;
+        }
+
+        int cur = _playlistIndex;
+        if (cur == from)
+        {
+            _playlistIndex = to;
+        }
+        else if (from < cur && to >= cur)
+        {
+            _playlistIndex -= 1;
+        }
+        else if (from > cur && to <= cur)
+        {
+            _playlistIndex += 1;
+        }
+        if (_shuffle)
+        {
+            RebasePass();
+        }
+    }
+
+    //--------------------------
+    // Snapshots. History is most recent first, same as HistoryPeekNth.
+
+    int[] PlaylistUIDs()
+    {
+        int[] uids = new int[_playlist.Size()];
+        for (int i = 0; i < uids.length; i++)
+        {
+            uids[i] = _playlist.Get(i);
+        }
+        return uids;
+    }
+
+    int[] HistoryUIDs()
+    {
+        int[] uids = new int[_history.Size()];
+        for (int i = 0; i < uids.length; i++)
+        {
+            uids[i] = _history.PeekNth(i);
+        }
+        return uids;
+    }
+
+    // Replaces everything. The caller decides which uids are still valid.
+    void Restore(int[] playlist, int playlistCount, int[] history, int historyCount, int historyDepth,
+                 int playlistIndex, int historyIndex)
+    {
+        ClearHistory();
+        ClearPlaylist();
+
+        for (int i = 0; i < playlistCount; i++)
+        {
+            Retain(playlist[i]);
+        }
+        _playlist.Set(playlist, playlistCount);
+        _playlistVersion++;
+
+        _history.SetCapacity(Math.max(1, historyDepth));
+        for (int i = historyCount - 1; i >= 0; i--)
+        {
+            PushToHistory(history[i]);
+        }
+
+        _playlistIndex = playlistIndex < playlistCount ? playlistIndex : -1;
+        _historyIndex = Math.min(historyIndex, _history.Size() - 1);
+        if (_shuffle)
+        {
+            StartPass(_playlistIndex);
+        }
+    }
+
+    void RestoreShuffle(boolean shuffle, long seed, int start)
+    {
+        _shuffle = shuffle;
+        _shuffleOrder.SetSeed(seed);
+        StartPass(-1);
+        _shuffleStart = Math.max(0, start);
+        if (shuffle && _playlistIndex >= 0)
+        {
+            // Only the start of the pass is saved, so take it as played up to the current track
+            int played = ShufflePosition(_playlistIndex);
+            for (int p = 0; p <= played; p++)
+            {
+                MarkPlayed(ShuffledIndex(p));
+            }
+        }
+    }
+}
@@ -0,0 +1,451 @@
+package com.fuse.StreamingPlayer;
+
+import android.os.Process;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps the queue on disk so the service can pick up where it left off after the
+ * process has been killed.
+ *
+ * The snapshot is split by how often the parts change, and only the parts that changed
+ * are written. The track table and the playlist can be large but only change when the
+ * app changes them. History & where we are in the queue change on every navigation but
+ * are small, and the playback position changes all the time. The queue file remembers
+ * which track table & playlist it was written with, so being killed between writing
+ * two of them is noticed on load instead of mixing them up.
+ *
+ * Writes happen on one background thread and go to a temp file that is renamed into
+ * place, so a crash mid-write leaves the previous file. If several saves are waiting
+ * only the newest is written, together with the newest track table & playlist any of
+ * them carried.
+ */
+final class QueueSnapshot
+{
+    static final int TRACKS_MAGIC = 0x53505431; // "SPT1"
+    static final int PLAYLIST_MAGIC = 0x53504c31; // "SPL1"
+    static final int QUEUE_MAGIC = 0x53505133; // "SPQ3", older snapshots are ignored
+    static final int POSITION_MAGIC = 0x53505031; // "SPP1"
+
+    static final class Queue
+    {
+        Track[] Tracks; // null if unchanged since the last save
+        int[] Playlist; // null if unchanged since the last save
+        int[] History; // most recent first, same order as History.PeekNth
+        int HistoryDepth;
+        int PlaylistIndex;
+        int HistoryIndex;
+        boolean Shuffle;
+        long ShuffleSeed;
+        int ShuffleStart;
+        int CurrentUID;
+    }
+
+    static final class Position
+    {
+        int UID;
+        int PositionMs;
+
+        Position(int uid, int positionMs)
+        {
+            UID = uid;
+            PositionMs = positionMs;
+        }
+    }
+
+    private final File _tracksFile;
+    private final File _playlistFile;
+    private final File _queueFile;
+    private final File _positionFile;
+    private final PlaybackMetrics _metrics;
+    private final ExecutorService _writer;
+    private Queue _pendingQueue; // guarded by this
+    private final AtomicReference<Position> _pendingPosition = new AtomicReference<>();
+    private RestoredUIDs _loadedUIDs; // how LoadQueue mapped the saved uids
+
+    // Which track table & playlist are on disk. LoadQueue sets them before anything is
+    // saved, after that only the writer thread touches them.
+    private final Random _stamps = new Random();
+    private long _tracksStamp = 0;
+    private long _playlistStamp = 0;
+
+    QueueSnapshot(File dir, PlaybackMetrics metrics)
+    {
+        dir.mkdirs();
+        _tracksFile = new File(dir, "tracks.bin");
+        _playlistFile = new File(dir, "playlist.bin");
+        _queueFile = new File(dir, "queue.bin");
+        _positionFile = new File(dir, "position.bin");
+        _metrics = metrics;
+        _writer = Executors.newSingleThreadExecutor(ArtworkLoader.NewThreadFactory("StreamingPlayerSnapshot", Process.THREAD_PRIORITY_BACKGROUND));
+    }
+
+    //--------------------------
+    // Saving
+
+    void SaveQueue(Queue queue)
+    {
+        Queue pending;
+        synchronized (this)
+        {
+            pending = _pendingQueue;
+            if (pending != null)
+            {
+                // The save we replace may carry parts this one did not copy
+                if (queue.Tracks == null)
+                    queue.Tracks = pending.Tracks;
+                if (queue.Playlist == null)
+                    queue.Playlist = pending.Playlist;
+            }
+            _pendingQueue = queue;
+        }
+        if (pending == null)
+        {
+            _writer.execute(_writeQueue);
+        }
+    }
+
+    void SavePosition(int uid, int positionMs)
+    {
+        if (_pendingPosition.getAndSet(new Position(uid, positionMs)) == null)
+        {
+            _writer.execute(_writePosition);
+        }
+    }
+
+    // Saves already handed to us are still written
+    void Shutdown()
+    {
+        _writer.shutdown();
+    }
+
+    private final Runnable _writeQueue = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Queue queue;
+            synchronized (QueueSnapshot.this)
+            {
+                queue = _pendingQueue;
+                _pendingQueue = null;
+            }
+            if (queue == null)
+                return;
+            try
+            {
+                if (queue.Tracks != null)
+                {
+                    WriteTracks(queue.Tracks);
+                    _metrics.Increment("snapshot.trackTableWrites");
+                }
+                if (queue.Playlist != null)
+                {
+                    WritePlaylist(queue.Playlist);
+                    _metrics.Increment("snapshot.playlistWrites");
+                }
+                WriteQueue(queue);
+                _metrics.Increment("snapshot.queueWrites");
+            }
+            catch (IOException e)
+            {
+                _metrics.Increment("snapshot.writeErrors");
+            }
+        }
+    };
+
+    private final Runnable _writePosition = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Position position = _pendingPosition.getAndSet(null);
+            if (position == null)
+                return;
+            try
+            {
+                WritePosition(position);
+            }
+            catch (IOException e)
+            {
+                _metrics.Increment("snapshot.writeErrors");
+            }
+        }
+    };
+
+    private void WriteTracks(Track[] tracks) throws IOException
+    {
+        long stamp = _stamps.nextLong();
+        File temp = new File(_tracksFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            out.writeInt(TRACKS_MAGIC);
+            out.writeLong(stamp);
+            out.writeInt(tracks.length);
+            for (Track track : tracks)
+            {
+                WriteTrack(out, track);
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        Commit(temp, _tracksFile);
+        _tracksStamp = stamp;
+    }
+
+    private void WritePlaylist(int[] playlist) throws IOException
+    {
+        long stamp = _stamps.nextLong();
+        File temp = new File(_playlistFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            out.writeInt(PLAYLIST_MAGIC);
+            out.writeLong(stamp);
+            WriteInts(out, playlist);
+        }
+        finally
+        {
+            out.close();
+        }
+        Commit(temp, _playlistFile);
+        _playlistStamp = stamp;
+    }
+
+    // History & where we are, plus which track table & playlist they go with
+    private void WriteQueue(Queue queue) throws IOException
+    {
+        File temp = new File(_queueFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try
+        {
+            out.writeInt(QUEUE_MAGIC);
+            out.writeLong(_tracksStamp);
+            out.writeLong(_playlistStamp);
+            WriteInts(out, queue.History);
+            out.writeInt(queue.HistoryDepth);
+            out.writeInt(queue.PlaylistIndex);
+            out.writeInt(queue.HistoryIndex);
+            out.writeBoolean(queue.Shuffle);
+            out.writeLong(queue.ShuffleSeed);
+            out.writeInt(queue.ShuffleStart);
+            out.writeInt(queue.CurrentUID);
+        }
+        finally
+        {
+            out.close();
+        }
+        Commit(temp, _queueFile);
+    }
+
+    private void WritePosition(Position position) throws IOException
+    {
+        File temp = new File(_positionFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try
+        {
+            out.writeInt(POSITION_MAGIC);
+            out.writeInt(position.UID);
+            out.writeInt(position.PositionMs);
+        }
+        finally
+        {
+            out.close();
+        }
+        Commit(temp, _positionFile);
+    }
+
+    private static void Commit(File temp, File target) throws IOException
+    {
+        if (!temp.renameTo(target))
+        {
+            temp.delete();
+            throw new IOException("Could not replace " + target.getPath());
+        }
+    }
+
+    private static void WriteTrack(DataOutputStream out, Track track) throws IOException
+    {
+        out.writeInt(track.UID);
+        WriteString(out, track.Name);
+        WriteString(out, track.Artist);
+        WriteString(out, track.Url);
+        WriteString(out, track.ArtworkUrl);
+        out.writeDouble(track.Duration);
+        out.writeInt(track.Bitrate);
+        out.writeInt(track.VariantUrls.size());
+        for (int v = 0; v < track.VariantUrls.size(); v++)
+        {
+            WriteString(out, track.VariantUrls.get(v));
+            out.writeInt(track.VariantBitrates.get(v));
+        }
+    }
+
+    private static void WriteString(DataOutputStream out, String value) throws IOException
+    {
+        out.writeBoolean(value != null);
+        if (value != null)
+        {
+            out.writeUTF(value);
+        }
+    }
+
+    private static void WriteInts(DataOutputStream out, int[] values) throws IOException
+    {
+        out.writeInt(values.length);
+        for (int value : values)
+        {
+            out.writeInt(value);
+        }
+    }
+
+    //--------------------------
+    // Loading. Blocking, call from a background thread. Null if there is nothing
+    // usable on disk. The uids in a loaded queue are not the saved ones but come from
+    // RestoredUIDs, so they can not collide with the tracks of this run.
+
+    Queue LoadQueue()
+    {
+        if (!_tracksFile.exists() || !_playlistFile.exists() || !_queueFile.exists())
+            return null;
+        try
+        {
+            RestoredUIDs uids = new RestoredUIDs();
+            _loadedUIDs = uids;
+            Queue queue = new Queue();
+
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(_tracksFile)));
+            try
+            {
+                if (in.readInt() != TRACKS_MAGIC)
+                    return null;
+                _tracksStamp = in.readLong();
+                queue.Tracks = new Track[in.readInt()];
+                for (int i = 0; i < queue.Tracks.length; i++)
+                {
+                    queue.Tracks[i] = ReadTrack(in, uids);
+                }
+            }
+            finally
+            {
+                in.close();
+            }
+
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_playlistFile)));
+            try
+            {
+                if (in.readInt() != PLAYLIST_MAGIC)
+                    return null;
+                _playlistStamp = in.readLong();
+                queue.Playlist = ReadInts(in);
+                uids.MapAll(queue.Playlist);
+            }
+            finally
+            {
+                in.close();
+            }
+
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(_queueFile)));
+            try
+            {
+                if (in.readInt() != QUEUE_MAGIC)
+                    return null;
+                if (in.readLong() != _tracksStamp || in.readLong() != _playlistStamp)
+                {
+                    // We were killed between writing the parts
+                    _metrics.Increment("snapshot.mismatchedParts");
+                    return null;
+                }
+                queue.History = ReadInts(in);
+                uids.MapAll(queue.History);
+                queue.HistoryDepth = in.readInt();
+                queue.PlaylistIndex = in.readInt();
+                queue.HistoryIndex = in.readInt();
+                queue.Shuffle = in.readBoolean();
+                queue.ShuffleSeed = in.readLong();
+                queue.ShuffleStart = in.readInt();
+                queue.CurrentUID = uids.Map(in.readInt());
+                return queue;
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            _metrics.Increment("snapshot.readErrors");
+            return null;
+        }
+    }
+
+    // Call after LoadQueue so the uid is mapped the same way
+    Position LoadPosition()
+    {
+        if (!_positionFile.exists())
+            return null;
+        try
+        {
+            DataInputStream in = new DataInputStream(new FileInputStream(_positionFile));
+            try
+            {
+                if (in.readInt() != POSITION_MAGIC)
+                    return null;
+                int uid = in.readInt();
+                if (_loadedUIDs != null)
+                    uid = _loadedUIDs.Map(uid);
+                return new Position(uid, in.readInt());
+            }
+            finally
+            {
+                in.close();
+            }
+        }
+        catch (IOException e)
+        {
+            _metrics.Increment("snapshot.readErrors");
+            return null;
+        }
+    }
+
+    private static Track ReadTrack(DataInputStream in, RestoredUIDs uids) throws IOException
+    {
+        Track track = new Track(uids.Map(in.readInt()), ReadString(in), ReadString(in), ReadString(in), ReadString(in), in.readDouble());
+        track.Bitrate = in.readInt();
+        int variants = in.readInt();
+        for (int v = 0; v < variants; v++)
+        {
+            track.AddVariant(ReadString(in), in.readInt());
+        }
+        return track;
+    }
+
+    private static String ReadString(DataInputStream in) throws IOException
+    {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    private static int[] ReadInts(DataInputStream in) throws IOException
+    {
+        int[] values = new int[in.readInt()];
+        for (int i = 0; i < values.length; i++)
+        {
+            values[i] = in.readInt();
+        }
+        return values;
+    }
+}
@@ -0,0 +1,41 @@
+package com.fuse.StreamingPlayer;
+
+/**
+ * New uids for the tracks of a restored queue.
+ *
+ * UIDs are only unique within one run of the app, and the app starts counting from 0
+ * again every time. Restored tracks count down from Integer.MAX_VALUE instead, so the
+ * tracks the app hands us later never share a uid with one of them, not even with the
+ * restored track that keeps playing after the rest of the restored queue is dropped.
+ */
+final class RestoredUIDs
+{
+    static final int FIRST = Integer.MAX_VALUE;
+
+    private final IntIntMap _uids = new IntIntMap();
+    private int _next = FIRST;
+
+    // The same saved uid always gets the same new one. -1 stays -1.
+    int Map(int savedUID)
+    {
+        if (savedUID < 0)
+        {
+            return savedUID;
+        }
+        int uid = _uids.Get(savedUID, -1);
+        if (uid < 0)
+        {
+            uid = _next--;
+            _uids.Put(savedUID, uid);
+        }
+        return uid;
+    }
+
+    void MapAll(int[] savedUIDs)
+    {
+        for (int i = 0; i < savedUIDs.length; i++)
+        {
+            savedUIDs[i] = Map(savedUIDs[i]);
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package com.fuse.StreamingPlayer;
+
+import android.graphics.Bitmap;
+import android.os.Handler;
+import android.support.v4.media.MediaMetadataCompat;
+import android.support.v4.media.session.MediaSessionCompat;
+import android.support.v4.media.session.PlaybackStateCompat;
+
+/**
+ * Everything the system shows about us, the session's playback state & metadata and
+ * the notification, goes through here.
+ *
+ * The service says what it wants shown as often as it likes. We remember it and, at
+ * most once every PUBLISH_DELAY_MS, publish whatever differs from what was published
+ * last. This is a plain delayed post on the engine thread rather than a frame callback,
+ * the Choreographer stops calling back while the screen is off and that is when the
+ * lock screen and the notification still have to follow along. A track
+ * change that goes BUFFERING -> PLAYING in one go is a single update, and a repeated
+ * state costs nothing. Must only be used from the engine thread.
+ */
+public final class SessionPublisher
+{
+    public static final int NOTIFICATION_UNCHANGED = -1;
+    public static final int NOTIFICATION_HIDDEN = 0;
+    static final long PUBLISH_DELAY_MS = 16;
+
+    private final StreamingAudioService _service;
+    private final MediaSessionCompat _session;
+    private final Handler _handler;
+    private final ArtworkMediaNotification _notification;
+    private final PlaybackStateCompat.Builder _stateBuilder = new PlaybackStateCompat.Builder();
+    private final MediaMetadataCompat.Builder _metadataBuilder = new MediaMetadataCompat.Builder();
+
+    // What we want shown
+    private int _state = PlaybackStateCompat.STATE_NONE;
+    private long _position = 0;
+    private long _actions = 0;
+    private String _errorMessage = null;
+    private Track _track = null;
+    private Bitmap _artwork = null;
+    private int _notificationKeyEvent = NOTIFICATION_HIDDEN;
+
+    // What was last published
+    private int _publishedState = -1;
+    private long _publishedPosition = -1;
+    private long _publishedActions = -1;
+    private Track _publishedTrack = null;
+    private Bitmap _publishedArtwork = null;
+    private int _publishedNotificationKeyEvent = NOTIFICATION_HIDDEN;
+
+    private boolean _scheduled = false;
+
+    public SessionPublisher(StreamingAudioService service, MediaSessionCompat session, Handler handler)
+    {
+        _service = service;
+        _session = session;
+        _handler = handler;
+        _notification = new ArtworkMediaNotification(session, service);
+    }
+
+    public void SetPlaybackState(int state, long position)
+    {
+        _state = state;
+        _position = position;
+        Schedule();
+    }
+
+    public void SetActions(long actions)
+    {
+        _actions = actions;
+        Schedule();
+    }
+
+    public void SetErrorMessage(String message)
+    {
+        _errorMessage = message;
+    }
+
+    public void SetTrack(Track track)
+    {
+        // Without a track we leave the last metadata up, like we always have
+        if (track == null || SameMetadata(track, _track))
+        {
+            return;
+        }
+
+        boolean sameArtwork = _track != null && Equal(track.ArtworkUrl, _track.ArtworkUrl);
+        _track = track;
+        if (!sameArtwork)
+        {
+            _artwork = null;
+            LoadArtwork(track);
+        }
+        Schedule();
+    }
+
+    // KeyEvent.KEYCODE_MEDIA_PLAY or KEYCODE_MEDIA_PAUSE for the primary button,
+    // NOTIFICATION_HIDDEN to take the notification down
+    public void SetNotification(int primaryActionKeyEvent)
+    {
+        if (primaryActionKeyEvent == NOTIFICATION_UNCHANGED)
+        {
+            return;
+        }
+        _notificationKeyEvent = primaryActionKeyEvent;
+        Schedule();
+    }
+
+    // The notification is also cancelled behind our back by KillNotificationPlayer
+    public void ForgetNotification()
+    {
+        _notificationKeyEvent = NOTIFICATION_HIDDEN;
+        _publishedNotificationKeyEvent = NOTIFICATION_HIDDEN;
+    }
+
+    private void LoadArtwork(final Track track)
+    {
+        if (track.ArtworkUrl == null)
+        {
+            return;
+        }
+        _service._artworkLoader.Load(track.ArtworkUrl, new ArtworkLoader.Callback()
+        {
+            @Override
+            public void OnArtworkLoaded(String url, Bitmap bitmap)
+            {
+                // The track may have changed while we waited
+                if (_track == null || !Equal(url, _track.ArtworkUrl))
+                {
+                    _service._metrics.Increment("artwork.staleDropped");
+                    return;
+                }
+                _artwork = bitmap;
+                Schedule();
+            }
+        });
+    }
+
+    //--------------------------
+
+    private void Schedule()
+    {
+        if (_scheduled)
+        {
+            return;
+        }
+        _scheduled = true;
+        _handler.postDelayed(_flush, PUBLISH_DELAY_MS);
+    }
+
+    private final Runnable _flush = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Flush();
+        }
+    };
+
+    // Nothing more is published after this, the session is about to be released
+    public void Shutdown()
+    {
+        _scheduled = true;
+        _handler.removeCallbacks(_flush);
+    }
+
+    public void Flush()
+    {
+        _scheduled = false;
+
+        if (_state != _publishedState || _position != _publishedPosition || _actions != _publishedActions)
+        {
+            _stateBuilder.setState(_state, _position, 1f);
+            _stateBuilder.setActions(_actions);
+            _stateBuilder.setErrorMessage(_state == PlaybackStateCompat.STATE_ERROR ? _errorMessage : null);
+            _session.setPlaybackState(_stateBuilder.build());
+            _publishedState = _state;
+            _publishedPosition = _position;
+            _publishedActions = _actions;
+            _service._metrics.Increment("publish.state");
+        }
+
+        boolean metadataChanged = _track != _publishedTrack || _artwork != _publishedArtwork;
+        if (metadataChanged && _track != null)
+        {
+            _metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, _track.Name);
+            _metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, _track.Artist);
+            _metadataBuilder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, (long)_track.Duration);
+            //This lets the album art be visible as the background while in the lock screen
+            _metadataBuilder.putBitmap(MediaMetadataCompat.METADATA_KEY_ALBUM_ART, _artwork);
+            _session.setMetadata(_metadataBuilder.build());
+            _publishedTrack = _track;
+            _publishedArtwork = _artwork;
+            _service._metrics.Increment("publish.metadata");
+        }
+
+        if (_notificationKeyEvent == NOTIFICATION_HIDDEN)
+        {
+            if (_publishedNotificationKeyEvent != NOTIFICATION_HIDDEN)
+            {
+                _notification.Cancel();
+                _publishedNotificationKeyEvent = NOTIFICATION_HIDDEN;
+            }
+        }
+        else if (_track != null && (metadataChanged || _notificationKeyEvent != _publishedNotificationKeyEvent))
+        {
+            _notification.Post(_notificationKeyEvent, _artwork);
+            _publishedNotificationKeyEvent = _notificationKeyEvent;
+            _service._metrics.Increment("publish.notification");
+        }
+    }
+
+    //--------------------------
+
+    static boolean SameMetadata(Track a, Track b)
+    {
+        if (a == b)
+            return true;
+        if (a == null || b == null)
+            return false;
+        return a.UID == b.UID
+            && a.Duration == b.Duration
+            && Equal(a.Name, b.Name)
+            && Equal(a.Artist, b.Artist)
+            && Equal(a.ArtworkUrl, b.ArtworkUrl);
+    }
+
+    static boolean Equal(String a, String b)
+    {
+        return a == null ? b == null : a.equals(b);
+    }
+}
@@ -0,0 +1,126 @@
+package com.fuse.StreamingPlayer;
+
+/**
+ * A seeded permutation of 0..size-1 that is computed on demand instead of stored.
+ *
+ * The permutation is a small Feistel network over the smallest even number of bits that
+ * covers size. That is a bijection over a power of two at most 4x larger than size, and
+ * values that land outside 0..size-1 are pushed through again until they land inside
+ * (cycle walking), which keeps it a bijection over 0..size-1. Both directions cost a
+ * few rounds of integer mixing, nothing is allocated and nothing depends on size other
+ * than the number of bits.
+ *
+ * The order changes when size changes, so inserting or removing tracks reshuffles
+ * whatever is left to play.
+ */
+final class ShuffleOrder
+{
+    static final int ROUNDS = 4;
+
+    private long _seed;
+    private final long[] _keys = new long[ROUNDS];
+
+    ShuffleOrder()
+    {
+        SetSeed(0);
+    }
+
+    long Seed()
+    {
+        return _seed;
+    }
+
+    void SetSeed(long seed)
+    {
+        _seed = seed;
+        long state = seed;
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            state += 0x9E3779B97F4A7C15L;
+            _keys[i] = Mix(state);
+        }
+    }
+
+    // The playlist index at 'position' in the shuffled order
+    int IndexAt(int position, int size)
+    {
+        if (size <= 1)
+        {
+            return position;
+        }
+        int halfBits = HalfBits(size);
+        int x = position;
+        do
+        {
+            x = Encrypt(x, halfBits);
+        }
+        while (x < 0 || x >= size); // negative is past 2^31 when halfBits is 16
+        return x;
+    }
+
+    // The position of a playlist index in the shuffled order, the inverse of IndexAt
+    int PositionOf(int index, int size)
+    {
+        if (size <= 1)
+        {
+            return index;
+        }
+        int halfBits = HalfBits(size);
+        int x = index;
+        do
+        {
+            x = Decrypt(x, halfBits);
+        }
+        while (x < 0 || x >= size); // negative is past 2^31 when halfBits is 16
+        return x;
+    }
+
+    //--------------------------
+
+    private static int HalfBits(int size)
+    {
+        int bits = 32 - Integer.numberOfLeadingZeros(size - 1);
+        return (bits + 1) / 2;
+    }
+
+    private int Encrypt(int x, int halfBits)
+    {
+        int mask = (1 << halfBits) - 1;
+        int left = x >>> halfBits;
+        int right = x & mask;
+        for (int i = 0; i < ROUNDS; i++)
+        {
+            int next = left ^ (Round(right, i) & mask);
+            left = right;
+            right = next;
+        }
+        return (left << halfBits) | right;
+    }
+
+    private int Decrypt(int x, int halfBits)
+    {
+        int mask = (1 << halfBits) - 1;
+        int left = x >>> halfBits;
+        int right = x & mask;
+        for (int i = ROUNDS - 1; i >= 0; i--)
+        {
+            int previous = right ^ (Round(left, i) & mask);
+            right = left;
+            left = previous;
+        }
+        return (left << halfBits) | right;
+    }
+
+    private int Round(int value, int round)
+    {
+        return (int)Mix(value ^ _keys[round]);
+    }
+
+    // splitmix64's finalizer
+    private static long Mix(long z)
+    {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+}
@@ -11,350 +11,1631 @@ import android.media.MediaPlayer;
 import android.os.Binder;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.Parcelable;
+import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.support.v4.app.NotificationManagerCompat;
-import android.support.v4.media.MediaMetadataCompat;
 import android.support.v4.media.session.MediaButtonReceiver;
 import android.support.v4.media.session.MediaControllerCompat;
 import android.support.v4.media.session.MediaSessionCompat;
 import android.support.v4.media.session.PlaybackStateCompat;
+import android.util.Log;
 import android.util.SparseArray;
 import android.view.KeyEvent;
 
+import java.io.File;
 import java.util.ArrayList;
-import java.util.Stack;
+import java.util.Random;
 
 public final class StreamingAudioService
         extends Service
-        implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener, AudioManager.OnAudioFocusChangeListener
+        implements MediaPlayer.OnPreparedListener, MediaPlayer.OnErrorListener, MediaPlayer.OnCompletionListener,
+                   MediaPlayer.OnInfoListener, MediaPlayer.OnBufferingUpdateListener, AudioManager.OnAudioFocusChangeListener
 {
+    static final String TAG = "StreamingPlayer";
+
     // Service
     LocalBinder _binder = new LocalBinder();
 
+    // Engine thread: the players, the queue and the session callbacks all live on
+    // _handler so that slow MediaPlayer calls and notification building never block
+    // the UI. Anything arriving on another thread is posted here.
+    HandlerThread _engineThread;
+    Handler _handler;
+
     // Player
     MediaSessionCompat _session;
     AudioManager _audioManager;
     MediaPlayer _player;
 
+    // Gapless: the upcoming track is prepared on a second player and chained
+    // to the current one with setNextMediaPlayer
+    MediaPlayer _nextPlayer;
+    int _nextPlayerUID = -1;
+    int _nextPlayerVariant = -1;
+    boolean _nextPrepared = false;
+    boolean _gapless = false;
+
+    // Crossfade: the upcoming track is started on the second player before the current
+    // one ends and the two are overlapped with a volume ramp. The old player is kept in
+    // _fadingPlayer until the ramp is done. 0 turns it off.
+    static final int CROSSFADE_STEP_MS = 50;
+    int _crossfadeMs = 0;
+    MediaPlayer _fadingPlayer;
+    long _fadeStartTime = 0;
+    int _fadeLengthMs = 0;
+    boolean _startingCrossfade = false;
+    float _duckVolume = 1.0f;
+
+    // Repeat: one loops the prepared player, all wraps the playlist around and warms up
+    // the first track on the second player while the last one plays.
+    static final int REPEAT_NONE = 0;
+    static final int REPEAT_ONE = 1;
+    static final int REPEAT_ALL = 2;
+    int _repeatMode = REPEAT_NONE;
+
+    // Disk cache of audio, filled through a local proxy that MediaPlayer streams from
+    static final long AUDIO_CACHE_MAX_BYTES = 256L * 1024 * 1024;
+    DiskCache _audioCache;
+    CachingProxy _proxy;
+
+    // Tracks the app asked to keep for offline playback. They are played from disk
+    // whenever the download is complete.
+    volatile OfflineDownloads _downloads; // set on the engine thread, see onCreate
+
+    // Bitrate variants: a track may have other urls with the same audio. We pick one
+    // at prepare time from the throughput the proxy measures. -1 is Track.Url.
+    static final double ABR_HEADROOM = 1.5;
+    ThroughputEstimator _throughput;
+    int _currentVariant = -1;
+    // The bitrate of the last variant picked from throughput, Track.Url's rank until then
+    int _abrRank = Integer.MAX_VALUE;
+
+    // Artwork for the notification & lock screen
+    static final int ARTWORK_PREFETCH_AHEAD = 3;
+    static final int ARTWORK_PREFETCH_BEHIND = 2;
+
+    // Playlist provider: the playlist is a range of uids whose tracks are asked for a page
+    // at a time as playback gets near them. Loaded tracks far from the current one are
+    // dropped again once there are more than PROVIDER_MAX_LOADED.
+    static final int PROVIDER_PAGE_SIZE = 50;
+    static final int PROVIDER_AHEAD = 10;
+    static final int PROVIDER_BEHIND = 2;
+    static final int PROVIDER_MAX_LOADED = 500;
+    int _providerFirstUID = -1;
+    int _providerCount = 0;
+    IntIntMap _requestedPages = new IntIntMap();
+    int _awaitingTrackUID = -1; // made current as soon as its page arrives
+    Track _awaitedPlaceholder;
+    ArtworkCache _artworkCache;
+    ArtworkLoader _artworkLoader;
+
     // State
-    PlaybackStateCompat.Builder _playbackStateBuilder = new PlaybackStateCompat.Builder();
-    MediaMetadataCompat.Builder _metadataBuilder = new MediaMetadataCompat.Builder();
+    SessionPublisher _publisher;
+    int _playbackState = PlaybackStateCompat.STATE_NONE;
     boolean _prepared = false;
+    boolean _preparing = false;
+    PlaybackMetrics _metrics = new PlaybackMetrics();
+
+    // Skip-storm protection
+    static final int PREPARE_DEBOUNCE_MS = 300;
+    int _prepareDebounceMs = PREPARE_DEBOUNCE_MS;
+    long _lastPrepareRequestTime = 0;
+    int _scheduledPrepareUID = -1;
+
+    // Telemetry. "track." counters describe the current track and are reset when it
+    // changes, "session." counters add up over the life of the service.
+    long _prepareStartTime = -1;
+    long _stallStartTime = -1;
+
+    // Recovery from stream errors: the current track is reopened with exponential
+    // backoff and resumed where it was. STATE_ERROR once the budget is used up.
+    public static final int RETRY_BUDGET = 3;
+    static final int RETRY_BASE_DELAY_MS = 1000;
+    static final int RETRY_MAX_DELAY_MS = 16000;
+    volatile int _retryBudget = RETRY_BUDGET;
+    int _retryAttempt = 0;
+    int _lastKnownPositionMs = 0;
+    int _resumePositionMs = 0;
+    long _recoveryStartTime = -1;
+
+    // Progress is pushed to the client while playing. 0 turns the updates off.
+    static final int PROGRESS_INTERVAL_MS = 250;
+    int _progressIntervalMs = PROGRESS_INTERVAL_MS;
+    boolean _progressTicking = false;
+
+    // The queue and position are saved to disk so a media button can resume playback
+    // after the process was killed, before the app has set anything up.
+    static final int SNAPSHOT_DELAY_MS = 1000;
+    static final int POSITION_SAVE_INTERVAL_MS = 5000;
+    QueueSnapshot _snapshot;
+    boolean _snapshotPending = false;
+    // Only the parts that changed since the last snapshot are copied & written again.
+    // Tracks that were dropped do not count, a few extra in the table do no harm.
+    int _tracksVersion = 0;
+    int _snapshotTracksVersion = -1;
+    int _snapshotPlaylistVersion = -1;
+    long _lastPositionSave = 0;
+    boolean _queueRestored = false;
+    int _restoredTrackUID = -1;
+    int _restoredPositionMs = 0;
 
     // Uno interaction
-    StreamingAudioClient _streamingAudioClient;
+    volatile StreamingAudioClient _streamingAudioClient;
 
+    // What we last asked the publisher to show. The session may be a frame behind.
     private int CurrentPlaybackState()
     {
-        PlaybackStateCompat currentState = _session.getController().getPlaybackState();
-        if (currentState == null) return PlaybackStateCompat.STATE_NONE;
-        return currentState.getState();
+        return _playbackState;
+    }
+
+    //--------------------------
+
+    private SparseArray<Track> _tracks = new SparseArray<>();
+    int _currentTrackUID = -1; // Must only EVER be set by MakeTrackCurrentByUID(uid)
+
+    // Playlist & history navigation. Tracks are dropped from _tracks once the queue
+    // has let go of them.
+    private final Random _shuffleSeeds = new Random();
+    private final QueueEngine _queue = new QueueEngine(new QueueEngine.Listener()
+    {
+        @Override
+        public void OnTrackReleased(int uid)
+        {
+            _tracks.remove(uid);
+        }
+    });
+
+    private void SetHistoryDepth(int depth)
+    {
+        _queue.SetHistoryDepth(depth);
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+    }
+
+    private void ClearHistory()
+    {
+        _queue.ClearHistory();
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+    }
+
+    // The playlist is left as it is, only the order we move through it changes. Every
+    // time shuffle is turned on we get a new order starting from the current track.
+    private void SetShuffle(boolean shuffle)
+    {
+        if (shuffle == _queue.IsShuffled())
+        {
+            return;
+        }
+        _queue.SetShuffle(shuffle, _shuffleSeeds.nextLong());
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+        PrefetchUpcoming();
+    }
+
+    //-------------------------
+    // Playlist provider
+
+    private boolean IsProviderUID(int uid)
+    {
+        return _providerCount > 0 && uid >= _providerFirstUID && uid - _providerFirstUID < _providerCount;
+    }
+
+    // The playlist is uids firstUID to firstUID + count - 1, in that order. Only the uids
+    // go into the queue, the tracks come later through ProvideTracks.
+    private void SetPlaylistProvider(int firstUID, int count)
+    {
+        DiscardRestoredQueue();
+        EndPlaylistProvider();
+        count = Math.max(0, count);
+        int[] uids = new int[count];
+        for (int i = 0; i < count; i++)
+        {
+            uids[i] = firstUID + i;
+        }
+        _providerFirstUID = firstUID;
+        _providerCount = count;
+        _queue.SetPlaylist(uids, count, _currentTrackUID);
+        _metrics.Set("provider.tracks", count);
+
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+        PrefetchUpcoming();
+    }
+
+    private void EndPlaylistProvider()
+    {
+        _providerFirstUID = -1;
+        _providerCount = 0;
+        _requestedPages.Clear();
+        _awaitingTrackUID = -1;
+    }
+
+    private void ProvideTracks(Track[] tracks)
+    {
+        for (Track track : tracks)
+        {
+            // Anything the queue has let go of in the meantime is not wanted anymore
+            if (IsProviderUID(track.UID) && _queue.IsRetained(track.UID))
+            {
+                _tracks.put(track.UID, track);
+                _tracksVersion++;
+                _requestedPages.Remove((track.UID - _providerFirstUID) / PROVIDER_PAGE_SIZE);
+            }
+        }
+        _metrics.Add("provider.tracksReceived", tracks.length);
+
+        if (_awaitingTrackUID >= 0 && _tracks.get(_awaitingTrackUID) != null)
+        {
+            _metrics.Increment("provider.waits");
+            MakeTrackCurrentByUID(_awaitingTrackUID, false);
+        }
+        EvictProviderTracks();
+
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+        PrefetchUpcoming();
+    }
+
+    // Asks for the pages holding the tracks we may move to next
+    private void RequestProviderWindow()
+    {
+        if (_providerCount == 0)
+        {
+            return;
+        }
+        if (_queue.PlaylistIndex() >= 0)
+        {
+            RequestProviderTrack(_queue.PlaylistGet(_queue.PlaylistIndex()));
+        }
+        for (int i = 1; i <= PROVIDER_AHEAD; i++)
+        {
+            RequestProviderTrack(_queue.PlayOrderUID(i));
+        }
+        for (int i = 1; i <= PROVIDER_BEHIND; i++)
+        {
+            RequestProviderTrack(_queue.PlayOrderUID(-i));
+        }
+        RequestProviderTrack(_queue.UpcomingTrackUID());
+        RequestProviderTrack(_awaitingTrackUID);
+    }
+
+    private void RequestProviderTrack(int uid)
+    {
+        if (!IsProviderUID(uid) || _tracks.get(uid) != null)
+        {
+            return;
+        }
+        int page = (uid - _providerFirstUID) / PROVIDER_PAGE_SIZE;
+        if (_requestedPages.ContainsKey(page))
+        {
+            return;
+        }
+        _requestedPages.Put(page, 1);
+        int start = page * PROVIDER_PAGE_SIZE;
+        _metrics.Increment("provider.pageRequests");
+        StreamingAudioClient client = _streamingAudioClient;
+        if (client != null)
+        {
+            client.DispatchTracksRequested(start, Math.min(PROVIDER_PAGE_SIZE, _providerCount - start));
+        }
+    }
+
+    // Moving to a track whose page has not arrived yet. We stop and wait for it rather
+    // than keep playing something the user has moved away from.
+    private void WaitForProviderTrack(int uid)
+    {
+        int originalUID = _currentTrackUID;
+        _awaitingTrackUID = uid;
+        ReleaseNextPlayer();
+        StopCurrentPlayer();
+
+        // The old track is not current anymore. The queue has already moved on to the
+        // awaited one, which becomes current when its page arrives.
+        if (originalUID >= 0)
+        {
+            EndTrackMetrics();
+            _currentTrackUID = -1;
+            _queue.Release(originalUID);
+            StreamingAudioClient client = _streamingAudioClient;
+            if (client != null && _session != null)
+            {
+                client.DispatchCurrentTrackChanged(null);
+            }
+        }
+        ScheduleSnapshot();
+        setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, 0);
+        RequestProviderTrack(uid);
+    }
+
+    // What the session & notification show while we wait for a track from the provider
+    private Track AwaitedTrackPlaceholder()
+    {
+        if (_awaitedPlaceholder == null || _awaitedPlaceholder.UID != _awaitingTrackUID)
+        {
+            _awaitedPlaceholder = new Track(_awaitingTrackUID, "", "", null, null, 0);
+        }
+        return _awaitedPlaceholder;
+    }
+
+    // History & whatever is playing keep their tracks, only playlist entries that are
+    // far from the current one are dropped. They are asked for again if we get near them.
+    private void EvictProviderTracks()
+    {
+        int loaded = 0;
+        for (int i = 0; i < _tracks.size(); i++)
+        {
+            if (IsProviderUID(_tracks.keyAt(i)))
+            {
+                loaded++;
+            }
+        }
+        if (loaded <= PROVIDER_MAX_LOADED)
+        {
+            return;
+        }
+
+        IntIntMap keep = new IntIntMap();
+        keep.Put(_currentTrackUID, 1);
+        keep.Put(_nextPlayerUID, 1);
+        keep.Put(_restoredTrackUID, 1);
+        keep.Put(_awaitingTrackUID, 1);
+        for (int i = -PROVIDER_BEHIND; i <= PROVIDER_AHEAD; i++)
+        {
+            keep.Put(_queue.PlayOrderUID(i), 1);
+        }
+        for (int i = 0; i < _queue.HistorySize(); i++)
+        {
+            keep.Put(_queue.HistoryPeekNth(i), 1);
+        }
+
+        for (int i = _tracks.size() - 1; i >= 0; i--)
+        {
+            int uid = _tracks.keyAt(i);
+            if (IsProviderUID(uid) && !keep.ContainsKey(uid))
+            {
+                _tracks.removeAt(i);
+            }
+        }
+        _metrics.Add("provider.evictions", loaded - PROVIDER_MAX_LOADED);
+    }
+
+    private int[] AddTracks(Track[] tracks)
+    {
+        int[] uids = new int[tracks.length];
+        for (int i = 0; i < tracks.length; i++)
+        {
+            _tracks.put(tracks[i].UID, tracks[i]);
+            uids[i] = tracks[i].UID;
+        }
+        _tracksVersion++;
+        return uids;
+    }
+
+    private void SetPlaylist(Track[] tracks)
+    {
+        DiscardRestoredQueue();
+        EndPlaylistProvider();
+        int[] uids = AddTracks(tracks);
+        _queue.SetPlaylist(uids, uids.length, _currentTrackUID);
+
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+        PrefetchUpcoming();
+    }
+
+    // The incremental alternatives to SetPlaylist only touch the tracks that changed
+
+    private void InsertTracks(int index, Track[] tracks)
+    {
+        DiscardRestoredQueue();
+        int[] uids = AddTracks(tracks);
+        _queue.InsertTracks(index, uids, uids.length);
+        PlaylistChangedIncrementally();
+    }
+
+    private void RemoveTracks(int index, int count)
+    {
+        _queue.RemoveTracks(index, count);
+        PlaylistChangedIncrementally();
+    }
+
+    private void MoveTrack(int from, int to)
+    {
+        _queue.MoveTrack(from, to);
+        PlaylistChangedIncrementally();
+    }
+
+    private void PlaylistChangedIncrementally()
+    {
+        ScheduleSnapshot();
+        PrepareNextPlayer();
+        PrefetchUpcoming();
+    }
+
+
+    //-------------------------
+    // Control of the current Track
+
+    private void MakeTrackCurrentByUID(int uid)
+    {
+        MakeTrackCurrentByUID(uid, true);
+    }
+
+    private void MakeTrackCurrentByUID(int uid, boolean debounce)
+    {
+        // This is the only way to request a change in CurrentTrack.
+        // Moving in the playlist and history is just changing the focus
+        // of those things.
+
+        int originalUID = _currentTrackUID;
+
+        if (uid >= 0 && _scheduledPrepareUID >= 0 && uid != _scheduledPrepareUID)
+        {
+            // This skip came before the last one got to prepare
+            _metrics.Increment("skip.preparesAvoided");
+        }
+
+        if (uid >= 0 && _tracks.get(uid) == null && IsProviderUID(uid))
+        {
+            WaitForProviderTrack(uid);
+            return;
+        }
+        _awaitingTrackUID = -1;
+
+        FinishCrossfade();
+        if (uid >= 0 && AdoptNextPlayer(uid))
+        {
+            _currentTrackUID = uid;
+            _audioCache.Pin(VariantUrl(GetCurrentTrack(), _currentVariant));
+            _metrics.Increment("gapless.warmTransitions");
+            ResetRecovery();
+            StartTrackMetrics();
+            _metrics.Set("track.bitrateKbps", VariantBitrate(GetCurrentTrack(), _currentVariant));
+            _prepareStartTime = SystemClock.uptimeMillis();
+            RecordTimeToFirstAudio();
+            setPlaybackState(PlaybackStateCompat.STATE_PLAYING, 0);
+            ScheduleNextPrepare(debounce);
+        }
+        else
+        {
+            ReleaseNextPlayer();
+            PrepareCurrentCold(uid, debounce);
+        }
+
+        if (_gapless && uid >= 0)
+        {
+            DumpMetrics("gapless.");
+        }
+
+        // The current track stays alive even if it is removed from the playlist while playing
+        if (_currentTrackUID != originalUID)
+        {
+            if (_currentTrackUID < 0)
+            {
+                EndTrackMetrics();
+            }
+            _queue.Retain(_currentTrackUID);
+            _queue.Release(originalUID);
+        }
+
+        // Navigating moves the playlist & history indices even when the track stays the same
+        ScheduleSnapshot();
+        if (_currentTrackUID != originalUID)
+        {
+            SavePosition(0);
+        }
+
+        if (_currentTrackUID != originalUID && _session!=null)
+        {
+            _queue.CurrentTrackChanged(_currentTrackUID);
+            StreamingAudioClient client = _streamingAudioClient;
+            if (client != null)
+            {
+                client.DispatchCurrentTrackChanged(_tracks.get(_currentTrackUID));
+            }
+            PrefetchUpcoming();
+        }
+    }
+
+    // The queue, current track & status change right away. Only the prepare, which is
+    // what opens the stream, is debounced.
+    private void PrepareCurrentCold(int uid, boolean debounce)
+    {
+        StopCurrentPlayer();
+
+        if (uid >= 0)
+        {
+            Track track = _tracks.get(uid);
+            if (track == null)
+            {
+                // A uid we have no track for is a bug elsewhere, but throwing here would take
+                // down the engine thread. Report it as an error with nothing current instead.
+                _metrics.Increment("track.missing");
+                _currentTrackUID = -1;
+                setPlaybackState(PlaybackStateCompat.STATE_ERROR, 0);
+                return;
+            }
+
+            setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, 0);
+            _currentTrackUID = uid;
+            StartTrackMetrics();
+            SchedulePrepare(uid, debounce);
+        }
+        else
+        {
+            _currentTrackUID = -1;
+        }
+    }
+
+    private void StopCurrentPlayer()
+    {
+        FinishCrossfade();
+        _handler.removeCallbacks(_startCrossfade);
+        CancelScheduledPrepare();
+        ResetRecovery();
+        if (_preparing)
+        {
+            // reset() abandons the prepareAsync that is in flight
+            _metrics.Increment("skip.preparesCancelled");
+            _preparing = false;
+        }
+        if (_prepared)
+        {
+            _prepared = false;
+            _player.stop();
+        }
+        _player.reset();
+    }
+
+    //-------------------------
+    // Skip-storm protection
+    //
+    // A lone navigation command prepares right away. Commands that arrive within
+    // _prepareDebounceMs of the previous one are part of a burst (someone mashing next)
+    // so we wait until the burst is over and only prepare the track it ended on.
+
+    private boolean InSkipBurst()
+    {
+        long now = SystemClock.uptimeMillis();
+        boolean inBurst = now - _lastPrepareRequestTime < _prepareDebounceMs;
+        _lastPrepareRequestTime = now;
+        return inBurst;
+    }
+
+    private void SchedulePrepare(int uid, boolean debounce)
+    {
+        boolean inBurst = InSkipBurst();
+        _scheduledPrepareUID = uid;
+        if (debounce && inBurst)
+        {
+            _handler.postDelayed(_scheduledPrepare, _prepareDebounceMs);
+        }
+        else
+        {
+            _scheduledPrepare.run();
+        }
+    }
+
+    // A warm transition plays at once, but warming the player after it opens a stream
+    // too, so in a burst that waits the same way
+    private void ScheduleNextPrepare(boolean debounce)
+    {
+        _handler.removeCallbacks(_scheduledNextPrepare);
+        if (InSkipBurst() && debounce)
+        {
+            _handler.postDelayed(_scheduledNextPrepare, _prepareDebounceMs);
+        }
+        else
+        {
+            PrepareNextPlayer();
+        }
+    }
+
+    private void CancelScheduledPrepare()
+    {
+        _handler.removeCallbacks(_scheduledNextPrepare);
+        if (_scheduledPrepareUID >= 0)
+        {
+            _handler.removeCallbacks(_scheduledPrepare);
+            _scheduledPrepareUID = -1;
+        }
+    }
+
+    private final Runnable _scheduledNextPrepare = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            PrepareNextPlayer();
+        }
+    };
+
+    private final Runnable _scheduledPrepare = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            int uid = _scheduledPrepareUID;
+            _scheduledPrepareUID = -1;
+            if (uid >= 0 && uid == _currentTrackUID)
+            {
+                StartPrepare(uid);
+            }
+        }
+    };
+
+    private void StartPrepare(int uid)
+    {
+        try
+        {
+            _player.reset();
+
+            Track track = _tracks.get(uid);
+            _currentVariant = SelectVariant(track);
+            String url = VariantUrl(track, _currentVariant);
+            _audioCache.Pin(url);
+            _player.setDataSource(DataSourceFor(url));
+            _metrics.Set("track.bitrateKbps", VariantBitrate(track, _currentVariant));
+
+            _prepared = false;
+            _preparing = true;
+            if (_recoveryStartTime < 0)
+            {
+                _prepareStartTime = SystemClock.uptimeMillis();
+            }
+            _player.prepareAsync();
+            if (_gapless)
+            {
+                _metrics.Increment("gapless.coldPrepares");
+            }
+        }
+        catch (Exception e)
+        {
+            _preparing = false;
+            RecordError(MediaPlayer.MEDIA_ERROR_UNKNOWN, MediaPlayer.MEDIA_ERROR_IO);
+            ScheduleRetry();
+        }
+    }
+
+    @Override
+    public void onPrepared(MediaPlayer mp)
+    {
+        if (mp == _nextPlayer)
+        {
+            OnNextPlayerPrepared();
+            return;
+        }
+        _preparing = false;
+        _prepared = true;
+        RecordTimeToFirstAudio();
+        int position = 0;
+        if (_resumePositionMs > 0)
+        {
+            position = _resumePositionMs;
+            _player.seekTo(position);
+        }
+        OnRecovered();
+        setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, position);
+        _player.setLooping(_repeatMode == REPEAT_ONE);
+        _player.start();
+        setPlaybackState(PlaybackStateCompat.STATE_PLAYING, position);
+        PrepareNextPlayer();
+    }
+
+    // Remote tracks are streamed through the caching proxy so replays come from disk
+    private String DataSourceFor(String url)
+    {
+        File downloaded = _downloads.GetFile(url);
+        if (downloaded != null)
+        {
+            _metrics.Increment("download.localPlays");
+            return downloaded.getPath();
+        }
+        if (_proxy != null && ArtworkMediaNotification.IsRemoteFile(url))
+        {
+            return _proxy.UrlFor(url);
+        }
+        return url;
+    }
+
+    //-------------------------
+    // Bitrate variants
+
+    static String VariantUrl(Track track, int variant)
+    {
+        return variant < 0 ? track.Url : track.VariantUrls.get(variant);
+    }
+
+    static int VariantBitrate(Track track, int variant)
+    {
+        return variant < 0 ? track.Bitrate : track.VariantBitrates.get(variant);
+    }
+
+    // Track.Url without a bitrate is assumed to be the best quality there is
+    static int RankOf(Track track, int variant)
+    {
+        int bitrate = VariantBitrate(track, variant);
+        return (variant < 0 && bitrate <= 0) ? Integer.MAX_VALUE : bitrate;
+    }
+
+    private boolean IsOnDisk(String url)
+    {
+        return _downloads.IsDownloaded(url) || _audioCache.Contains(url);
+    }
+
+    private int SelectVariant(Track track)
+    {
+        if (!track.HasVariants())
+        {
+            return -1;
+        }
+
+        // Anything we already have on disk plays without touching the network
+        int best = -2;
+        for (int v = -1; v < track.VariantUrls.size(); v++)
+        {
+            if (IsOnDisk(VariantUrl(track, v)) && (best == -2 || RankOf(track, v) > RankOf(track, best)))
+            {
+                best = v;
+            }
+        }
+        if (best != -2)
+        {
+            _metrics.Increment("abr.cachedVariantChosen");
+            return best;
+        }
+
+        double kbps = _throughput.EstimateKbps();
+        if (kbps < 0)
+        {
+            return -1;
+        }
+
+        // The best one we can download comfortably faster than it plays, else the smallest
+        int fits = -2;
+        int lowest = -1;
+        for (int v = -1; v < track.VariantUrls.size(); v++)
+        {
+            int rank = RankOf(track, v);
+            if (rank * ABR_HEADROOM <= kbps && (fits == -2 || rank > RankOf(track, fits)))
+            {
+                fits = v;
+            }
+            if (rank < RankOf(track, lowest))
+            {
+                lowest = v;
+            }
+        }
+        int chosen = fits != -2 ? fits : lowest;
+        int rank = RankOf(track, chosen);
+        if (rank < _abrRank)
+        {
+            _metrics.Increment("abr.downshifts");
+        }
+        else if (rank > _abrRank)
+        {
+            _metrics.Increment("abr.upshifts");
+        }
+        _abrRank = rank;
+        return chosen;
+    }
+
+    //-------------------------
+    // Artwork prefetching
+
+    // Called whenever what comes next may have changed
+    private void PrefetchUpcoming()
+    {
+        RequestProviderWindow();
+        PrefetchArtwork();
+    }
+
+    // Warms the artwork for the tracks that next/forward and backward would move to
+    private void PrefetchArtwork()
+    {
+        ArrayList<String> urls = new ArrayList<>();
+        AddArtworkUrl(urls, _queue.UpcomingTrackUID());
+        for (int i = 1; i <= ARTWORK_PREFETCH_AHEAD; i++)
+        {
+            int uid = _queue.PlayOrderUID(i);
+            if (uid < 0)
+                break;
+            AddArtworkUrl(urls, uid);
+        }
+        for (int i = 1; i <= ARTWORK_PREFETCH_BEHIND; i++)
+        {
+            int index = _queue.HistoryIndex() + i;
+            if (index >= _queue.HistorySize())
+                break;
+            AddArtworkUrl(urls, _queue.HistoryPeekNth(index));
+        }
+        _artworkLoader.Prefetch(urls);
+    }
+
+    private void AddArtworkUrl(ArrayList<String> urls, int uid)
+    {
+        Track track = _tracks.get(uid);
+        if (track != null && track.ArtworkUrl != null && !urls.contains(track.ArtworkUrl))
+        {
+            urls.add(track.ArtworkUrl);
+        }
+    }
+
+    //-------------------------
+    // Gapless playback
+
+    private MediaPlayer CreatePlayer()
+    {
+        MediaPlayer player = new MediaPlayer();
+        player.setOnErrorListener(this);
+        player.setOnPreparedListener(this);
+        player.setOnCompletionListener(this);
+        player.setOnInfoListener(this);
+        player.setOnBufferingUpdateListener(this);
+        return player;
+    }
+
+    private boolean CanChainPlayers()
+    {
+        return _gapless && android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN;
+    }
+
+    // Gapless, crossfade and wrapping around on repeat all need the upcoming track ready
+    // on the second player. Repeating one track never moves on by itself.
+    private boolean WantsNextPlayer()
+    {
+        if (_repeatMode == REPEAT_ONE)
+        {
+            return false;
+        }
+        return CanChainPlayers() || _crossfadeMs > 0 || _queue.UpcomingWrapsAround();
+    }
+
+    private void SetGapless(boolean enabled)
+    {
+        _gapless = enabled;
+        if (enabled)
+        {
+            PrepareNextPlayer();
+        }
+        else
+        {
+            ReleaseNextPlayer();
+        }
+    }
+
+    // Warms up a second player for whatever Forward() would play next. If that is
+    // already what the second player holds we leave it be, so this is cheap to call
+    // whenever the playlist or history may have changed what comes next.
+    private void PrepareNextPlayer()
+    {
+        if (!WantsNextPlayer() || !_prepared)
+        {
+            return;
+        }
+
+        int uid = _queue.UpcomingTrackUID();
+        if (uid == _nextPlayerUID && _nextPlayer != null)
+        {
+            return;
+        }
+
+        ReleaseNextPlayer();
+
+        Track track = _tracks.get(uid);
+        if (uid < 0 || track == null)
+        {
+            return;
+        }
+
+        try
+        {
+            _nextPlayer = CreatePlayer();
+            _nextPlayerVariant = SelectVariant(track);
+            _nextPlayer.setDataSource(DataSourceFor(VariantUrl(track, _nextPlayerVariant)));
+            _nextPlayerUID = uid;
+            _nextPlayer.prepareAsync();
+        }
+        catch (Exception e)
+        {
+            ReleaseNextPlayer();
+        }
+    }
+
+    private void OnNextPlayerPrepared()
+    {
+        _nextPrepared = true;
+        if (!_prepared)
+        {
+            return;
+        }
+        if (_crossfadeMs > 0)
+        {
+            // We start the next player ourselves, it must not be chained as well
+            if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+            {
+                _player.setNextMediaPlayer(null);
+            }
+            ScheduleCrossfade();
+        }
+        else if (CanChainPlayers())
+        {
+            _player.setNextMediaPlayer(_nextPlayer);
+        }
+    }
+
+    private void ReleaseNextPlayer()
+    {
+        if (_nextPlayer == null)
+        {
+            return;
+        }
+        if (_prepared && android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+        {
+            _player.setNextMediaPlayer(null);
+        }
+        _nextPlayer.release();
+        _nextPlayer = null;
+        _nextPlayerUID = -1;
+        _nextPlayerVariant = -1;
+        _nextPrepared = false;
+    }
+
+    // If the requested track is the one waiting on the second player we swap it in
+    // rather than paying for a reset & prepare. When the current track completed
+    // naturally the chained player will already be playing.
+    private boolean AdoptNextPlayer(int uid)
+    {
+        if (!_nextPrepared || uid != _nextPlayerUID)
+        {
+            return false;
+        }
+
+        MediaPlayer finished = _player;
+        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN)
+        {
+            finished.setNextMediaPlayer(null);
+        }
+
+        _player = _nextPlayer;
+        _currentVariant = _nextPlayerVariant;
+        _nextPlayer = null;
+        _nextPlayerUID = -1;
+        _nextPlayerVariant = -1;
+        _nextPrepared = false;
+
+        _prepared = true;
+        _player.setLooping(_repeatMode == REPEAT_ONE);
+        if (_startingCrossfade)
+        {
+            // The finished player is still playing its tail, it fades out as this fades in
+            _fadingPlayer = finished;
+            _player.setVolume(0, 0);
+            _player.start();
+            StartFadeRamp();
+            return true;
+        }
+        finished.release();
+
+        if (!_player.isPlaying())
+        {
+            _player.start();
+        }
+        return true;
+    }
+
+    //-------------------------
+    // Crossfade
+    //
+    // The fade is started by one delayed post timed from the current position, and the
+    // ramp runs on the engine handler only while the two players overlap. Nothing ticks
+    // while a track simply plays.
+
+    private void SetCrossfade(int durationMs)
+    {
+        _crossfadeMs = Math.max(0, durationMs);
+        _handler.removeCallbacks(_startCrossfade);
+        if (!WantsNextPlayer())
+        {
+            ReleaseNextPlayer();
+        }
+        else if (_nextPrepared)
+        {
+            // Chains it or schedules the fade, whichever is wanted now
+            OnNextPlayerPrepared();
+        }
+        else
+        {
+            PrepareNextPlayer();
+        }
+    }
+
+    //-------------------------
+    // Repeat
+
+    private void SetRepeatMode(int mode)
+    {
+        _repeatMode = mode;
+        _queue.SetRepeat(mode == REPEAT_ALL);
+        if (_prepared)
+        {
+            _player.setLooping(mode == REPEAT_ONE);
+        }
+        _handler.removeCallbacks(_startCrossfade);
+        if (!WantsNextPlayer())
+        {
+            ReleaseNextPlayer();
+        }
+        else if (_nextPrepared)
+        {
+            OnNextPlayerPrepared();
+        }
+        else
+        {
+            PrepareNextPlayer();
+        }
+        PrefetchUpcoming();
+    }
+
+    private void ScheduleCrossfade()
+    {
+        _handler.removeCallbacks(_startCrossfade);
+        if (_crossfadeMs <= 0 || !_prepared || !_nextPrepared
+            || CurrentPlaybackState() != PlaybackStateCompat.STATE_PLAYING)
+        {
+            return;
+        }
+        int duration = _player.getDuration();
+        if (duration <= 0)
+        {
+            return; // live streams do not end
+        }
+        int remaining = duration - _player.getCurrentPosition();
+        _handler.postDelayed(_startCrossfade, Math.max(0, remaining - _crossfadeMs));
+    }
+
+    private final Runnable _startCrossfade = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (!_prepared || !_nextPrepared || _nextPlayerUID != _queue.UpcomingTrackUID()
+                || CurrentPlaybackState() != PlaybackStateCompat.STATE_PLAYING)
+            {
+                return;
+            }
+            // A stall while buffering pushes the end back, so check before committing
+            int remaining = _player.getDuration() - _player.getCurrentPosition();
+            if (remaining > _crossfadeMs + CROSSFADE_STEP_MS)
+            {
+                _handler.postDelayed(this, remaining - _crossfadeMs);
+                return;
+            }
+
+            _fadeLengthMs = Math.max(CROSSFADE_STEP_MS, Math.min(_crossfadeMs, remaining));
+            _metrics.Increment("crossfade.transitions");
+            // Same move as when the track completes, so playlist & history order is kept
+            _startingCrossfade = true;
+            try
+            {
+                MakeTrackCurrentByUID(_queue.MoveForwardInHistory(), false);
+            }
+            finally
+            {
+                _startingCrossfade = false;
+            }
+        }
+    };
+
+    private void StartFadeRamp()
+    {
+        _fadeStartTime = SystemClock.uptimeMillis();
+        _handler.removeCallbacks(_crossfadeStep);
+        _handler.post(_crossfadeStep);
     }
 
-    //--------------------------
+    // Equal power curves, so the overlap is not quieter than either track
+    private final Runnable _crossfadeStep = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (_fadingPlayer == null)
+            {
+                return;
+            }
+            float t = Math.min(1.0f, (SystemClock.uptimeMillis() - _fadeStartTime) / (float)_fadeLengthMs);
+            float in = (float)Math.sin(t * Math.PI / 2) * _duckVolume;
+            float out = (float)Math.cos(t * Math.PI / 2) * _duckVolume;
+            _player.setVolume(in, in);
+            _fadingPlayer.setVolume(out, out);
+            if (t >= 1.0f)
+            {
+                FinishCrossfade();
+            }
+            else
+            {
+                _handler.postDelayed(this, CROSSFADE_STEP_MS);
+            }
+        }
+    };
 
-    private SparseArray<Track> _tracks = new SparseArray<>();
-    private ArrayList<Integer> _trackPlaylist = new ArrayList<Integer>();
-    private int _currentTrackUID = -1; // Must only EVER be set by MakeTrackCurrentByUID(uid)
-    private Stack<Integer> _trackHistory = new Stack<Integer>();
-    private int _trackPlaylistCurrentIndex = -1;
-    private int _trackHistoryCurrentIndex = -1; // set to -1 every time we move structurally.
+    // Ends a fade in progress straight away, e.g. when the user pauses or skips during it
+    private void FinishCrossfade()
+    {
+        if (_fadingPlayer == null)
+        {
+            return;
+        }
+        _handler.removeCallbacks(_crossfadeStep);
+        _fadingPlayer.release();
+        _fadingPlayer = null;
+        _player.setVolume(_duckVolume, _duckVolume);
+    }
 
-    private int peekNth(Stack<Integer> stack, int n)
+    private Track GetCurrentTrack()
     {
-        return stack.get(stack.size() - (1 + n));
+        return _tracks.get(_currentTrackUID);
     }
 
-    private void pushToHistory(int uid)
+    //-------------------------
+    // Telemetry
+
+    public PlaybackMetrics GetMetrics()
     {
-        _trackHistory.push(uid);
+        return _metrics;
     }
 
-    void PushCurrentToHistory()
+    // Logs nothing when no counter matches the prefix
+    public void DumpMetrics(String prefix)
     {
-        int cur = _trackPlaylistCurrentIndex;
-        if (cur >= 0)
+        String description = _metrics.Describe(prefix);
+        if (description.length() > 0)
         {
-            pushToHistory(_trackPlaylist.get(cur));
+            Log.d(TAG, "Metrics: " + description);
         }
     }
 
-    // Query Playlist and History
+    // Logs what we know about the track that is finishing and starts over for the next one
+    private void StartTrackMetrics()
+    {
+        EndTrackMetrics();
+        _metrics.Set("track.uid", _currentTrackUID);
+        _metrics.Increment("session.tracks");
+    }
+
+    private void EndTrackMetrics()
+    {
+        EndStall();
+        _prepareStartTime = -1;
+        DumpMetrics("track.");
+        _metrics.Reset("track.");
+    }
 
-    private int PlaylistNextTrackUID()
+    private void RecordTimeToFirstAudio()
     {
-        int i = _trackPlaylistCurrentIndex + 1;
-        if (i >= _trackPlaylist.size())
+        if (_prepareStartTime < 0)
         {
-            return -1;
+            return;
         }
-        return _trackPlaylist.get(i);
+        long ttfa = SystemClock.uptimeMillis() - _prepareStartTime;
+        _prepareStartTime = -1;
+        _metrics.Set("track.timeToFirstAudioMs", ttfa);
+        _metrics.Add("session.timeToFirstAudioMsTotal", ttfa);
+        _metrics.Max("session.timeToFirstAudioMsMax", ttfa);
+        _metrics.Increment("session.timeToFirstAudioSamples");
     }
 
-    private int PlaylistPrevTrackUID()
+    private void EndStall()
     {
-        int i = _trackPlaylistCurrentIndex - 1;
-        if (i < 0)
+        if (_stallStartTime < 0)
         {
-            return -1;
+            return;
         }
-        return _trackPlaylist.get(i);
+        long stall = SystemClock.uptimeMillis() - _stallStartTime;
+        _stallStartTime = -1;
+        _metrics.Add("track.stallMs", stall);
+        _metrics.Add("session.stallMs", stall);
     }
 
-    private int HistoryNextTrackUID()
+    @Override
+    public boolean onInfo(MediaPlayer mp, int what, int extra)
     {
-        int i = _trackHistoryCurrentIndex - 1;
-        if (i < 0)
+        if (mp != _player)
         {
-            return -1;
+            return false;
         }
-        return peekNth(_trackHistory, i);
+        switch (what)
+        {
+            case MediaPlayer.MEDIA_INFO_BUFFERING_START:
+            {
+                if (_stallStartTime < 0)
+                {
+                    _stallStartTime = SystemClock.uptimeMillis();
+                    _metrics.Increment("track.rebuffers");
+                    _metrics.Increment("session.rebuffers");
+                }
+                break;
+            }
+            case MediaPlayer.MEDIA_INFO_BUFFERING_END:
+            {
+                EndStall();
+                break;
+            }
+        }
+        return false;
     }
 
-    private int HistoryPrevTrackUID()
+    @Override
+    public void onBufferingUpdate(MediaPlayer mp, int percent)
     {
-        int i = _trackHistoryCurrentIndex + 1;
-        if (i >= _trackHistory.size())
+        if (mp == _player)
         {
-            return -1;
+            _metrics.Set("track.bufferedPercent", percent);
+            RememberPosition();
         }
-        return peekNth(_trackHistory, i);
     }
 
-    // Modify Playlist and History
+    private void RecordError(int what, int extra)
+    {
+        _metrics.Increment("track.errors");
+        _metrics.Set("track.lastErrorWhat", what);
+        _metrics.Set("track.lastErrorExtra", extra);
+        _metrics.Increment("session.errors");
+        _metrics.Increment("session.error." + what + "." + extra);
+        DumpMetrics("track.");
+    }
+
+    //-------------------------
+    // Error recovery
+
+    private void SetRetryBudget(int budget)
+    {
+        _retryBudget = Math.max(0, budget);
+    }
 
-    private void DropFuture()
+    // Called often enough while streaming that we know where to resume after an error,
+    // as the player can not tell us once it has failed
+    private void RememberPosition()
     {
-        if (_trackHistoryCurrentIndex>-1)
+        if (_prepared)
         {
-            for (int i = 0; i < _trackHistoryCurrentIndex; i++)
+            _lastKnownPositionMs = _player.getCurrentPosition();
+            if (SystemClock.uptimeMillis() - _lastPositionSave >= POSITION_SAVE_INTERVAL_MS)
             {
-                _trackHistory.pop();
+                SavePosition(_lastKnownPositionMs);
             }
-            _trackHistoryCurrentIndex = -1;
         }
     }
 
-    private int SetCurrentPlaylistTrack(int trackUID)
+    private void ResetRecovery()
     {
+        _handler.removeCallbacks(_retry);
+        _retryAttempt = 0;
+        _lastKnownPositionMs = 0;
+        _resumePositionMs = 0;
+        _recoveryStartTime = -1;
+    }
 
-        int index = _trackPlaylist.indexOf(trackUID);
-        if (index > -1)
+    private void ScheduleRetry()
+    {
+        if (_currentTrackUID < 0)
         {
-            // If we were playing from history then we dont want to push the current
-            // track to history as it is already there.
-            boolean wasntPlayingFromHistory = _trackHistoryCurrentIndex == -1;
-
-            // If we were in the history then moving structurally starts making a new
-            // history. This means we drop the future.
-            DropFuture();
-
-            if (wasntPlayingFromHistory)
-            {
-                PushCurrentToHistory();
-            }
+            return;
+        }
+        // The failed player can not be asked for its position, _lastKnownPositionMs is what we have
+        _prepared = false;
 
-            _trackPlaylistCurrentIndex = index;
-            return trackUID;
+        if (_retryAttempt >= _retryBudget)
+        {
+            _metrics.Increment("retry.givenUp");
+            _handler.removeCallbacks(_retry);
+            _recoveryStartTime = -1;
+            setPlaybackState(PlaybackStateCompat.STATE_ERROR, _lastKnownPositionMs);
+            return;
         }
-        else
+
+        if (_recoveryStartTime < 0)
         {
-            return -1;
+            _recoveryStartTime = SystemClock.uptimeMillis();
         }
+        int delay = Math.min(RETRY_BASE_DELAY_MS << _retryAttempt, RETRY_MAX_DELAY_MS);
+        _retryAttempt += 1;
+        _metrics.Increment("retry.attempts");
+        setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, _lastKnownPositionMs);
+        _handler.removeCallbacks(_retry);
+        _handler.postDelayed(_retry, delay);
     }
 
-    private int MoveToNextPlaylistTrack()
+    // Play() after we gave up starts over with a full budget
+    private void RetryNow()
     {
-        int uid = PlaylistNextTrackUID();
-        if (uid >=0)
-        {
-            // If we were playing from history then we dont want to push the current
-            // track to history as it is already there.
-            boolean wasntPlayingFromHistory = _trackHistoryCurrentIndex == -1;
-
-            // If we were in the history then moving structurally starts making a new
-            // history. This means we drop the future.
-            DropFuture();
+        _retryAttempt = 0;
+        _recoveryStartTime = SystemClock.uptimeMillis();
+        _handler.removeCallbacks(_retry);
+        _retry.run();
+    }
 
-            if (wasntPlayingFromHistory)
+    private final Runnable _retry = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            if (_currentTrackUID < 0)
             {
-                PushCurrentToHistory();
+                return;
             }
+            _resumePositionMs = _lastKnownPositionMs;
+            _preparing = false;
+            StartPrepare(_currentTrackUID);
+        }
+    };
 
-            // Modify our position in the playlist
-            _trackPlaylistCurrentIndex += 1;
+    private void OnRecovered()
+    {
+        if (_recoveryStartTime >= 0)
+        {
+            _metrics.Increment("retry.recoveries");
+            _metrics.Add("retry.timeToRecoverMs", SystemClock.uptimeMillis() - _recoveryStartTime);
         }
-        return uid;
+        _retryAttempt = 0;
+        _resumePositionMs = 0;
+        _recoveryStartTime = -1;
     }
 
-    private int MoveToPrevPlaylistTrack()
+    //-------------------------
+    // Progress updates
+
+    private void SetProgressInterval(int intervalMs)
     {
-        int uid = PlaylistPrevTrackUID();
-        if (uid >=0)
-        {
-            // If we were playing from history then we dont want to push the current
-            // track to history as it is already there.
-            boolean wasntPlayingFromHistory = _trackHistoryCurrentIndex == -1;
+        _progressIntervalMs = Math.max(0, intervalMs);
+        StopProgressTicker();
+        UpdateProgressTicker(CurrentPlaybackState());
+    }
 
-            // If we were in the history then moving structurally starts making a new
-            // history. This means we drop the future.
-            DropFuture();
+    // Ticks only while playing, so a paused or stopped player does not wake anyone up
+    private void UpdateProgressTicker(int state)
+    {
+        boolean shouldTick = _progressIntervalMs > 0 && state == PlaybackStateCompat.STATE_PLAYING;
+        if (shouldTick && !_progressTicking)
+        {
+            _progressTicking = true;
+            _handler.post(_progressTick);
+        }
+        else if (!shouldTick)
+        {
+            StopProgressTicker();
+        }
+    }
 
-            if (wasntPlayingFromHistory)
-            {
-                PushCurrentToHistory();
-            }
+    private void StopProgressTicker()
+    {
+        _progressTicking = false;
+        _handler.removeCallbacks(_progressTick);
+    }
 
-            // Modify our position in the playlist
-            _trackPlaylistCurrentIndex -= 1;
+    private void PushProgress()
+    {
+        StreamingAudioClient client = _streamingAudioClient;
+        if (_prepared && client != null)
+        {
+            client.DispatchProgressChanged(_player.getCurrentPosition(), _player.getDuration());
         }
-        return uid;
     }
 
-    private int MoveBackInHistory()
+    private final Runnable _progressTick = new Runnable()
     {
-        int uid = HistoryPrevTrackUID();
-        if (uid >=0)
+        @Override
+        public void run()
         {
-            _trackHistoryCurrentIndex += 1;
-            int playlistIndex = _trackPlaylist.indexOf(uid); // -1 if not found
-            if (playlistIndex >= 0)
+            if (!_progressTicking)
             {
-                _trackPlaylistCurrentIndex = playlistIndex;
+                return;
             }
+            RememberPosition();
+            PushProgress();
+            _handler.postDelayed(this, _progressIntervalMs);
+        }
+    };
+
+    //-------------------------
+    // Snapshot
+
+    private void ScheduleSnapshot()
+    {
+        if (!_snapshotPending)
+        {
+            _snapshotPending = true;
+            _handler.postDelayed(_saveSnapshot, SNAPSHOT_DELAY_MS);
         }
-        return uid;
     }
 
-    private int MoveForwardInHistory()
+    private final Runnable _saveSnapshot = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            _snapshotPending = false;
+            _snapshot.SaveQueue(CaptureQueue());
+        }
+    };
+
+    // Copies what the writer thread needs, the Tracks themselves do not change. Moving
+    // around the queue only copies the history & indices, the track table and the
+    // playlist are left null unless they changed.
+    private QueueSnapshot.Queue CaptureQueue()
     {
-        int uid = HistoryNextTrackUID();
-        if (uid >=0)
+        QueueSnapshot.Queue queue = new QueueSnapshot.Queue();
+        if (_snapshotTracksVersion != _tracksVersion)
         {
-            _trackHistoryCurrentIndex -= 1;
-            int playlistIndex = _trackPlaylist.indexOf(uid); // -1 if not found
-            if (playlistIndex >= 0)
+            _snapshotTracksVersion = _tracksVersion;
+            queue.Tracks = new Track[_tracks.size()];
+            for (int i = 0; i < queue.Tracks.length; i++)
             {
-                _trackPlaylistCurrentIndex = playlistIndex;
+                queue.Tracks[i] = _tracks.valueAt(i);
             }
-            return uid;
         }
-        else
+        if (_snapshotPlaylistVersion != _queue.PlaylistVersion())
         {
-            return MoveToNextPlaylistTrack();
+            _snapshotPlaylistVersion = _queue.PlaylistVersion();
+            queue.Playlist = _queue.PlaylistUIDs();
         }
+        queue.History = _queue.HistoryUIDs();
+        queue.HistoryDepth = _queue.HistoryDepth();
+        queue.PlaylistIndex = _queue.PlaylistIndex();
+        queue.HistoryIndex = _queue.HistoryIndex();
+        queue.Shuffle = _queue.IsShuffled();
+        queue.ShuffleSeed = _queue.ShuffleSeed();
+        queue.ShuffleStart = _queue.ShuffleStart();
+        queue.CurrentUID = _currentTrackUID >= 0 ? _currentTrackUID : _restoredTrackUID;
+        return queue;
     }
 
-    private void ClearHistory()
+    private void SavePosition(int positionMs)
     {
-        // neccesary when people want to set the playlist and not let it be possible
-        // to go back in history to tracks not in the playlist.
-        _trackHistory.clear();
-        _trackHistoryCurrentIndex = -1;
-
-        // We no longer need any tracks that arent in the playlist as there is no way
-        // to navigate to them
-        ArrayList<Track> keep = new ArrayList<>();
-
-        for (int uid: _trackPlaylist)
-            keep.add(_tracks.get(uid));
-
-        _tracks.clear();
-
-        for (Track track: keep)
-            _tracks.put(track.UID, track);
+        _lastPositionSave = SystemClock.uptimeMillis();
+        _snapshot.SavePosition(_currentTrackUID, positionMs);
     }
 
-    private void SetPlaylist(Track[] tracks)
+    private void FlushSnapshot()
     {
-        _trackPlaylist.clear();
-
-        ArrayList<Integer> uids = new ArrayList<>();
-
-        for (Track track : tracks)
+        if (_snapshotPending)
         {
-            _tracks.put(track.UID, track);
-            _trackPlaylist.add(track.UID);
+            _handler.removeCallbacks(_saveSnapshot);
+            _saveSnapshot.run();
         }
-
-        _trackPlaylistCurrentIndex = _trackPlaylist.indexOf(_currentTrackUID);
+        if (_prepared)
+        {
+            SavePosition(_player.getCurrentPosition());
+        }
+        _snapshot.Shutdown();
     }
 
-
-    //-------------------------
-    // Control of the current Track
-
-    private void MakeTrackCurrentByUID(int uid)
+    // Runs on the engine thread before any command can arrive. The current track is
+    // not prepared until someone presses play, see ResumeRestored.
+    private void RestoreSnapshot()
     {
-        // This is the only way to request a change in CurrentTrack.
-        // Moving in the playlist and history is just changing the focus
-        // of those things.
+        long start = SystemClock.uptimeMillis();
+        QueueSnapshot.Queue queue = _snapshot.LoadQueue();
+        if (queue == null)
+        {
+            return;
+        }
 
-        if (_prepared)
+        for (Track track : queue.Tracks)
         {
-            _prepared = false;
-            _player.stop();
-            _player.reset();
+            _tracks.put(track.UID, track);
         }
+        _tracksVersion++;
 
-        int originalUID = _currentTrackUID;
-        if (uid >= 0)
+        // Entries whose track did not make it are dropped, which moves the ones after them
+        int[] playlist = new int[queue.Playlist.length];
+        int playlistCount = 0;
+        int playlistIndex = -1;
+        for (int i = 0; i < queue.Playlist.length; i++)
         {
-            try
+            int uid = queue.Playlist[i];
+            if (_tracks.get(uid) != null)
             {
-                _player.reset();
-
-                Track track = _tracks.get(uid);
-                if (track == null)
+                if (i == queue.PlaylistIndex)
                 {
-                    throw new AssertionError();
+                    playlistIndex = playlistCount;
                 }
-
-                _player.setDataSource(track.Url);
-
-                setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, 0);
-                _prepared = false;
-
-                _currentTrackUID = uid;
-
-                _player.prepareAsync();
+                playlist[playlistCount++] = uid;
+            }
+        }
+        int[] history = new int[queue.History.length];
+        int historyCount = 0;
+        int historyIndex = -1;
+        for (int i = 0; i < queue.History.length; i++)
+        {
+            int uid = queue.History[i];
+            if (i == queue.HistoryIndex)
+            {
+                historyIndex = historyCount; // the next older entry if this one is dropped
             }
-            catch (Exception e)
+            if (_tracks.get(uid) != null)
             {
-                // {TODO} move to error state
+                history[historyCount++] = uid;
             }
         }
+        _queue.Restore(playlist, playlistCount, history, historyCount, queue.HistoryDepth,
+                       playlistIndex, historyIndex);
+        if (playlistCount == queue.Playlist.length)
+        {
+            _queue.RestoreShuffle(queue.Shuffle, queue.ShuffleSeed, queue.ShuffleStart);
+        }
         else
         {
-            _currentTrackUID = -1;
+            // The shuffled order depends on the size, so the saved pass means nothing now
+            _queue.RestoreShuffle(false, queue.ShuffleSeed, 0);
+            _queue.SetShuffle(queue.Shuffle, queue.ShuffleSeed);
         }
 
-        if (_currentTrackUID != originalUID && _session!=null)
+        if (queue.CurrentUID >= 0 && _tracks.get(queue.CurrentUID) != null)
         {
-            _trackPlaylistCurrentIndex = _trackPlaylist.indexOf(_currentTrackUID);
-            Track track = _tracks.get(uid);
-            Bundle extras = new Bundle();
-            extras.putParcelable("track", track);
-            _session.sendSessionEvent("trackChanged", extras);
+            _restoredTrackUID = queue.CurrentUID;
+            _queue.Retain(_restoredTrackUID);
+            QueueSnapshot.Position position = _snapshot.LoadPosition();
+            if (position != null && position.UID == _restoredTrackUID)
+            {
+                _restoredPositionMs = Math.max(0, position.PositionMs);
+            }
+        }
+
+        // Nothing else holds the tracks that were only kept alive by the old current track
+        for (int i = _tracks.size() - 1; i >= 0; i--)
+        {
+            if (!_queue.IsRetained(_tracks.keyAt(i)))
+            {
+                _tracks.removeAt(i);
+            }
         }
+
+        _queueRestored = true;
+        _metrics.Set("snapshot.restoredTracks", _tracks.size());
+        _metrics.Set("snapshot.restoreMs", SystemClock.uptimeMillis() - start);
     }
 
-    @Override
-    public void onPrepared(MediaPlayer mp)
+    private void ResumeRestored()
     {
-        _prepared = true;
-        setPlaybackState(PlaybackStateCompat.STATE_BUFFERING, 0);
-        _player.setLooping(false);
-        _player.start();
-        setPlaybackState(PlaybackStateCompat.STATE_PLAYING, 0);
+        int uid = _restoredTrackUID;
+        int position = _restoredPositionMs;
+        _restoredTrackUID = -1;
+        _restoredPositionMs = 0;
+
+        MakeTrackCurrentByUID(uid, false);
+        _queue.Release(uid); // the current track holds it now
+        // onPrepared seeks here, same as when recovering from an error
+        _resumePositionMs = position;
+        _lastKnownPositionMs = position;
+        SavePosition(position);
+        _metrics.Increment("snapshot.resumes");
     }
 
-    private Track GetCurrentTrack()
+    // Once the app hands us tracks the restored queue is dropped. The restored current
+    // track keeps playing, its uid comes from RestoredUIDs so the app's tracks can not
+    // collide with it.
+    private void DiscardRestoredQueue()
     {
-        return _tracks.get(_currentTrackUID);
+        if (!_queueRestored)
+        {
+            return;
+        }
+        _queueRestored = false;
+
+        _queue.ClearPlaylist();
+        _queue.ClearHistory();
+        _queue.Release(_restoredTrackUID);
+        _restoredTrackUID = -1;
+        _restoredPositionMs = 0;
     }
 
     //---------------------------
@@ -365,14 +1646,73 @@ public final class StreamingAudioService
         _streamingAudioClient = bgp;
     }
 
+    // What the settings the app can change start out as, for the app to show before the
+    // service is running
+    public static final int DEFAULT_HISTORY_DEPTH = QueueEngine.HISTORY_DEPTH;
+    public static final int DEFAULT_DOWNLOAD_CONCURRENCY = OfflineDownloads.CONCURRENCY;
+
+    // Where OfflineDownloads keeps its files, also used to look before the service runs
+    public static File DownloadsDirectory(Context context)
+    {
+        return new File(context.getFilesDir(), "StreamingPlayerDownloads");
+    }
+
     @Override
     public void onCreate()
     {
+        _engineThread = new HandlerThread("StreamingPlayerEngine", Process.THREAD_PRIORITY_AUDIO);
+        _engineThread.start();
+        _handler = new Handler(_engineThread.getLooper());
         _audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
-        _player = new MediaPlayer();
-        _player.setOnErrorListener(this);
-        _player.setOnPreparedListener(this);
-        _player.setOnCompletionListener(this);
+
+        // The caches, the snapshot and the downloads all touch the disk when they are
+        // created, so they are set up on the engine thread rather than holding up the main
+        // thread. This is posted first, so it runs before any command can reach the engine.
+        // MediaPlayer calls its listeners on the looper of the thread that created it.
+        _handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _artworkCache = new ArtworkCache(StreamingAudioService.this);
+                _artworkLoader = new ArtworkLoader(_artworkCache, _handler, _metrics);
+                _audioCache = new DiskCache(new File(getCacheDir(), "StreamingPlayerAudio"), AUDIO_CACHE_MAX_BYTES);
+                _throughput = new ThroughputEstimator(_metrics);
+                _snapshot = new QueueSnapshot(new File(getFilesDir(), "StreamingPlayerQueue"), _metrics);
+                _proxy = new CachingProxy(_audioCache, _metrics, _throughput);
+                if (!_proxy.Start())
+                {
+                    _proxy = null;
+                }
+                _downloads = new OfflineDownloads(DownloadsDirectory(StreamingAudioService.this),
+                        ArtworkLoader.NewThreadFactory("StreamingPlayerDownload", Process.THREAD_PRIORITY_BACKGROUND),
+                        _metrics, new OfflineDownloads.Listener()
+                {
+                    @Override
+                    public void OnDownloadProgress(String url, long downloadedBytes, long totalBytes)
+                    {
+                        StreamingAudioClient client = _streamingAudioClient;
+                        if (client != null)
+                        {
+                            client.DispatchDownloadProgress(url, downloadedBytes, totalBytes);
+                        }
+                    }
+
+                    @Override
+                    public void OnDownloadFinished(String url, boolean succeeded)
+                    {
+                        StreamingAudioClient client = _streamingAudioClient;
+                        if (client != null)
+                        {
+                            client.DispatchDownloadFinished(url, succeeded);
+                        }
+                    }
+                });
+
+                _player = CreatePlayer();
+                RestoreSnapshot();
+            }
+        });
 
         try
         {
@@ -388,37 +1728,81 @@ public final class StreamingAudioService
     @Override
     public void onDestroy()
     {
-        _session.setActive(false);
-        _audioManager.abandonAudioFocus(this);
         stopNoisyReciever();
-        _session.release();
-        NotificationManagerCompat.from(this).cancel(ArtworkMediaNotification.ID);
+        _handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _session.setActive(false);
+                _audioManager.abandonAudioFocus(StreamingAudioService.this);
+                StopProgressTicker();
+                ResetRecovery();
+                CancelScheduledPrepare();
+                _handler.removeCallbacks(_startCrossfade);
+                FinishCrossfade();
+                FlushSnapshot();
+                ReleaseNextPlayer();
+                _player.release();
+                _artworkLoader.Shutdown();
+                _downloads.Shutdown();
+                _publisher.Shutdown();
+                if (_proxy != null)
+                {
+                    _proxy.Stop();
+                }
+                _session.release();
+                NotificationManagerCompat.from(StreamingAudioService.this).cancel(ArtworkMediaNotification.ID);
+            }
+        });
+        // Lets the teardown above, and anything queued before it, run first
+        if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2)
+        {
+            _engineThread.quitSafely();
+        }
+        else
+        {
+            _handler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _engineThread.quit();
+                }
+            });
+        }
         super.onDestroy();
     }
 
+    @Override
+    public void onTrimMemory(final int level)
+    {
+        super.onTrimMemory(level);
+        _handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _artworkCache.Trim(level);
+            }
+        });
+    }
+
     private void initMediaSessions() throws RemoteException
     {
         _session = new MediaSessionCompat(getApplicationContext(), "FuseStreamingPlayerSession");
         _session.setFlags(MediaSessionCompat.FLAG_HANDLES_MEDIA_BUTTONS | MediaSessionCompat.FLAG_HANDLES_TRANSPORT_CONTROLS);
         _session.setActive(true);
+        _publisher = new SessionPublisher(this, _session, _handler);
 
+        // Delivered on the engine thread, same as commands from our own client
         _session.setCallback(new MediaSessionCompat.Callback()
         {
             @Override
             public void onPlay()
             {
                 super.onPlay();
-                if (tryTakeAudioFocus())
-                {
-                    if (_currentTrackUID>-1)
-                    {
-                        Resume();
-                    }
-                    else
-                    {
-                        Next();
-                    }
-                }
+                Play();
             }
 
             @Override
@@ -471,6 +1855,24 @@ public final class StreamingAudioService
                     }
                     SetPlaylist(tracks.toArray(new Track[tracks.size()]));
                 }
+                else if (action.equals("InsertTracks"))
+                {
+                    Parcelable[] pTracks = extras.getParcelableArray("tracks");
+                    Track[] tracks = new Track[pTracks.length];
+                    for (int i = 0; i < pTracks.length; i++)
+                    {
+                        tracks[i] = (com.fuse.StreamingPlayer.Track)pTracks[i];
+                    }
+                    InsertTracks(extras.getInt("index"), tracks);
+                }
+                else if (action.equals("RemoveTracks"))
+                {
+                    RemoveTracks(extras.getInt("index"), extras.getInt("count"));
+                }
+                else if (action.equals("MoveTrack"))
+                {
+                    MoveTrack(extras.getInt("from"), extras.getInt("to"));
+                }
                 else if (action.equals("Forward"))
                 {
                     Forward();
@@ -488,8 +1890,28 @@ public final class StreamingAudioService
                     int uid = extras.getInt("uid");
                     SwitchTrack(uid);
                 }
+                else if (action.equals("SetGapless"))
+                {
+                    SetGapless(extras.getBoolean("enabled"));
+                }
+                else if (action.equals("SetRetryBudget"))
+                {
+                    SetRetryBudget(extras.getInt("budget"));
+                }
+                else if (action.equals("SetProgressInterval"))
+                {
+                    SetProgressInterval(extras.getInt("intervalMs"));
+                }
+                else if (action.equals("SetHistoryDepth"))
+                {
+                    SetHistoryDepth(extras.getInt("depth"));
+                }
+                else if (action.equals("SetArtworkTimeouts"))
+                {
+                    _artworkLoader.SetTimeouts(extras.getInt("connectTimeoutMs"), extras.getInt("readTimeoutMs"));
+                }
             }
-        });
+        }, _handler);
 
         if (android.os.Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
         {
@@ -512,23 +1934,34 @@ public final class StreamingAudioService
         setPlaybackState(newState, _player.getCurrentPosition());
     }
 
+    // Safe to call from any thread
     public void KillNotificationPlayer()
     {
-        // NotificationManager notificationManager = (NotificationManager) getApplicationContext().getSystemService(Context.NOTIFICATION_SERVICE);
-        // notificationManager.cancel(ArtworkMediaNotification.ID);
         NotificationManagerCompat.from(this).cancel(ArtworkMediaNotification.ID);
+        _handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                _publisher.ForgetNotification();
+            }
+        });
     }
 
+    static final long SESSION_ACTIONS = PlaybackStateCompat.ACTION_PLAY |
+            PlaybackStateCompat.ACTION_PLAY_PAUSE |
+            PlaybackStateCompat.ACTION_PAUSE |
+            PlaybackStateCompat.ACTION_STOP |
+            PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
+            PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
+            PlaybackStateCompat.ACTION_SEEK_TO |
+            PlaybackStateCompat.ACTION_PLAY_FROM_URI;
+
     private void setPlaybackState(int newState, int position) // PlaybackStateCompat.STATE_YYY
     {
         // Vars we can mutate for result
-        int oldState = CurrentPlaybackState();
-        int notifKeycode = -1;
-        int notifIcon = -1;
-        String notifText = "<invalid>";
-
-        // Begin
-        _playbackStateBuilder.setState(newState, position, 1f);
+        int oldState = _playbackState;
+        int notifKeycode = SessionPublisher.NOTIFICATION_UNCHANGED;
 
         switch (newState)
         {
@@ -539,68 +1972,55 @@ public final class StreamingAudioService
             case PlaybackStateCompat.STATE_PAUSED:
             {
                 notifKeycode = KeyEvent.KEYCODE_MEDIA_PLAY;
-                notifIcon = android.R.drawable.ic_media_play;
-                notifText = "MakeTrackCurrentByUID";
                 break;
             }
             case PlaybackStateCompat.STATE_BUFFERING:
             {
                 break;
             }
+            case PlaybackStateCompat.STATE_ERROR:
+            {
+                _publisher.SetErrorMessage("Could not play " + (GetCurrentTrack() != null ? GetCurrentTrack().Url : "track"));
+                break;
+            }
             case PlaybackStateCompat.STATE_PLAYING:
             {
-                notifIcon = android.R.drawable.ic_media_pause;
-                notifText = "Pause";
                 notifKeycode = KeyEvent.KEYCODE_MEDIA_PAUSE;
-
-                _playbackStateBuilder.setActions(PlaybackStateCompat.ACTION_PLAY |
-                        PlaybackStateCompat.ACTION_PLAY_PAUSE |
-                        PlaybackStateCompat.ACTION_PAUSE |
-                        PlaybackStateCompat.ACTION_STOP |
-                        PlaybackStateCompat.ACTION_SKIP_TO_NEXT |
-                        PlaybackStateCompat.ACTION_SKIP_TO_PREVIOUS |
-                        PlaybackStateCompat.ACTION_SEEK_TO |
-                        PlaybackStateCompat.ACTION_PLAY_FROM_URI);
+                _publisher.SetActions(SESSION_ACTIONS);
                 break;
             }
             default:
                 return;
         }
+        _playbackState = newState;
 
-        // update session
-        _session.setPlaybackState(_playbackStateBuilder.build());
-        UpdateMetadata();
-
-        // and the notification if needed
-        if (notifKeycode != -1)
+        // The publisher works out what actually changed and sends it at most once every few milliseconds
+        Track track = GetCurrentTrack();
+        if (track == null && _awaitingTrackUID >= 0)
         {
-            Track track = GetCurrentTrack();
-            if (track!=null)
-            {
-                UpdateMetadata();
-                ArtworkMediaNotification.Notify(track, _session, this, notifIcon, notifText, notifKeycode);
-            }
-            else
-            {
-                KillNotificationPlayer();
-            }
+            track = AwaitedTrackPlaceholder();
         }
-
-        // and uno
-        if (newState != oldState)
+        _publisher.SetPlaybackState(newState, position);
+        _publisher.SetTrack(track);
+        if (notifKeycode != SessionPublisher.NOTIFICATION_UNCHANGED)
         {
-            _streamingAudioClient.OnInternalStatusChanged(newState);
+            _publisher.SetNotification(track != null ? notifKeycode : SessionPublisher.NOTIFICATION_HIDDEN);
         }
-    }
 
-    private void UpdateMetadata()
-    {
-        if (GetCurrentTrack() != null)
+        // and uno, which is not there yet when a media button started the service
+        StreamingAudioClient client = _streamingAudioClient;
+        if (newState != oldState && client != null)
+        {
+            client.DispatchStatusChanged(newState);
+        }
+        UpdateProgressTicker(newState);
+        if (newState == PlaybackStateCompat.STATE_PLAYING)
         {
-            _metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_TITLE, GetCurrentTrack().Name);
-            _metadataBuilder.putString(MediaMetadataCompat.METADATA_KEY_ARTIST, GetCurrentTrack().Artist);
-            _metadataBuilder.putLong(MediaMetadataCompat.METADATA_KEY_DURATION, (long)GetCurrentTrack().Duration);
-            _session.setMetadata(_metadataBuilder.build());
+            ScheduleCrossfade();
+        }
+        else
+        {
+            _handler.removeCallbacks(_startCrossfade);
         }
     }
 
@@ -609,10 +2029,17 @@ public final class StreamingAudioService
         @Override
         public void onReceive(Context context, Intent intent)
         {
-            if (_player != null && _player.isPlaying())
+            _handler.post(new Runnable()
             {
-                Pause();
-            }
+                @Override
+                public void run()
+                {
+                    if (_player != null && _player.isPlaying())
+                    {
+                        Pause();
+                    }
+                }
+            });
         }
     };
 
@@ -631,9 +2058,37 @@ public final class StreamingAudioService
     // Actions
     //
 
+    private void Play()
+    {
+        if (_awaitingTrackUID >= 0)
+        {
+            // We are already on our way to a track, it plays as soon as it arrives
+            return;
+        }
+        if (tryTakeAudioFocus())
+        {
+            if (_currentTrackUID>-1)
+            {
+                Resume();
+            }
+            else if (_restoredTrackUID>-1)
+            {
+                ResumeRestored();
+            }
+            else
+            {
+                Next();
+            }
+        }
+    }
+
     private void Resume()
     {
-        if (_prepared)
+        if (CurrentPlaybackState() == PlaybackStateCompat.STATE_ERROR)
+        {
+            RetryNow();
+        }
+        else if (_prepared)
         {
             if (_player.isPlaying())
             {
@@ -655,32 +2110,38 @@ public final class StreamingAudioService
     {
         if (_prepared)
         {
+            FinishCrossfade();
             _player.seekTo(milliseconds);
+            SavePosition(milliseconds);
             // We dont use our setPlaybackState as we don't want to touch the notification
-            int currentState = CurrentPlaybackState();
-            _playbackStateBuilder.setState(currentState, _player.getCurrentPosition(), 1f);
-            _session.setPlaybackState(_playbackStateBuilder.build());
+            _publisher.SetPlaybackState(_playbackState, _player.getCurrentPosition());
+            // Let a paused seek bar catch up too
+            if (_progressIntervalMs > 0)
+            {
+                PushProgress();
+            }
+            ScheduleCrossfade();
         }
     }
 
     private void Next()
     {
-        MakeTrackCurrentByUID(MoveToNextPlaylistTrack());
+        MakeTrackCurrentByUID(_queue.MoveToNextPlaylistTrack());
     }
 
     private void Previous()
     {
-        MakeTrackCurrentByUID(MoveToPrevPlaylistTrack());
+        MakeTrackCurrentByUID(_queue.MoveToPrevPlaylistTrack());
     }
 
     private void Forward()
     {
-        MakeTrackCurrentByUID(MoveForwardInHistory());
+        MakeTrackCurrentByUID(_queue.MoveForwardInHistory());
     }
 
     private void Backward()
     {
-        int uid = MoveBackInHistory();
+        int uid = _queue.MoveBackInHistory();
         if (uid > -1)
         {
             MakeTrackCurrentByUID(uid);
@@ -691,20 +2152,22 @@ public final class StreamingAudioService
     {
         if (CurrentPlaybackState() == PlaybackStateCompat.STATE_PLAYING)
         {
+            FinishCrossfade();
+            RememberPosition();
             _player.pause();
+            SavePosition(_lastKnownPositionMs);
             setPlaybackState(PlaybackStateCompat.STATE_PAUSED);
         }
     }
 
     private void Stop()
     {
-        _prepared = false;
-        _player.stop();
-        _player.reset();
+        ReleaseNextPlayer();
+        StopCurrentPlayer();
         _audioManager.abandonAudioFocus(this);
         setPlaybackState(PlaybackStateCompat.STATE_STOPPED, 0);
         //
-        KillNotificationPlayer();
+        _publisher.SetNotification(SessionPublisher.NOTIFICATION_HIDDEN);
         // {TODO} why stop the service?
         Intent intent = new Intent(getApplicationContext(), StreamingAudioService.class);
         stopService(intent);
@@ -714,7 +2177,7 @@ public final class StreamingAudioService
 
     private void SwitchTrack(int uid)
     {
-        int validatedUID = SetCurrentPlaylistTrack(uid);
+        int validatedUID = _queue.SetCurrentPlaylistTrack(uid);
         if (validatedUID > -1)
         {
             MakeTrackCurrentByUID(validatedUID);
@@ -728,18 +2191,66 @@ public final class StreamingAudioService
     @Override
     public void onCompletion(MediaPlayer mp)
     {
-        Forward();
+        if (mp == _fadingPlayer)
+        {
+            FinishCrossfade();
+            return;
+        }
+        if (mp != _player)
+        {
+            return;
+        }
+        if (_repeatMode == REPEAT_ONE)
+        {
+            // Looping normally keeps us from getting here, but some streams complete anyway.
+            // The player is still prepared so starting over does not open the stream again.
+            _metrics.Increment("repeat.restarts");
+            _player.seekTo(0);
+            _player.start();
+            SavePosition(0);
+            return;
+        }
+        // Same as Forward() but nobody is going to skip again, so no reason to wait
+        MakeTrackCurrentByUID(_queue.MoveForwardInHistory(), false);
     }
 
     @Override
     public boolean onError(MediaPlayer mp, int what, int extra)
     {
-        // {TODO} move to error state?
+        if (mp == _nextPlayer)
+        {
+            // Only the warm-up failed, the track will be prepared cold when we get to it
+            ReleaseNextPlayer();
+            return true;
+        }
+        if (mp == _fadingPlayer)
+        {
+            FinishCrossfade();
+            return true;
+        }
+        if (mp != _player)
+        {
+            return true;
+        }
+        RecordError(what, extra);
+        ScheduleRetry();
         return true;
     }
 
     @Override
-    public void onAudioFocusChange(int focusChange)
+    public void onAudioFocusChange(final int focusChange)
+    {
+        _handler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                HandleAudioFocusChange(focusChange);
+            }
+        });
+    }
+
+    private void HandleAudioFocusChange(int focusChange)
     {
         switch (focusChange)
         {
@@ -758,9 +2269,10 @@ public final class StreamingAudioService
             }
             case AudioManager.AUDIOFOCUS_LOSS_TRANSIENT_CAN_DUCK:
             {
-                if (_player != null)
+                _duckVolume = 0.3f;
+                if (_player != null && _fadingPlayer == null)
                 {
-                    _player.setVolume(0.3f, 0.3f);
+                    _player.setVolume(_duckVolume, _duckVolume);
                 }
                 break;
             }
@@ -772,7 +2284,11 @@ public final class StreamingAudioService
                     {
                         Resume();
                     }
-                    _player.setVolume(1.0f, 1.0f);
+                    _duckVolume = 1.0f;
+                    if (_fadingPlayer == null)
+                    {
+                        _player.setVolume(_duckVolume, _duckVolume);
+                    }
                 }
                 break;
             }
@@ -815,66 +2331,149 @@ public final class StreamingAudioService
     }
 
     // Interfaces
+
+    // The client is how Uno talks to the service. We live in the same process, so
+    // commands are posted straight to the service's handler rather than parcelled
+    // through the media session. The session is still what external controllers
+    // (bluetooth, wear, auto) use, and it is where we read the playback state from.
     public static abstract class StreamingAudioClient extends MediaControllerCompat.Callback
     {
+        private final StreamingAudioService _service;
+        private final Handler _mainHandler = new Handler(Looper.getMainLooper());
         private MediaControllerCompat _controller;
         private PlaybackStateCompat _lastPlayerState;
         private Track _currentTrack = null;
 
+        // These are all called on the main thread
         public abstract void OnCurrentTrackChanged(Track track);
         public abstract void OnInternalStatusChanged(int i);
+        // At the progress interval while playing
+        public abstract void OnProgressChanged(int positionMs, int durationMs);
+        // After every chunk of a download. totalBytes is -1 if unknown
+        public abstract void OnDownloadProgress(String url, double downloadedBytes, double totalBytes);
+        public abstract void OnDownloadFinished(String url, boolean succeeded);
+        // The playlist provider should answer with ProvideTracks
+        public abstract void OnTracksRequested(int start, int count);
 
         public StreamingAudioClient(StreamingAudioService service) throws RemoteException
         {
+            _service = service;
             _controller = new MediaControllerCompat(service.getApplicationContext(), service._session.getSessionToken());
             _controller.registerCallback(this);
         }
 
+        // Commands are run in the order they were sent
+        private void Post(Runnable command)
+        {
+            _service._handler.post(command);
+        }
+
         public final void Play()
         {
-            _controller.getTransportControls().play();
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Play();
+                }
+            });
         }
 
         public final void Pause()
         {
-            _controller.getTransportControls().pause();
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Pause();
+                }
+            });
         }
 
         public final void Stop()
         {
-            _controller.getTransportControls().stop();
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Stop();
+                }
+            });
         }
 
         public final void Next()
         {
-            _controller.getTransportControls().skipToNext();
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Next();
+                }
+            });
         }
 
         public final void Previous()
         {
-            _controller.getTransportControls().skipToPrevious();
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Previous();
+                }
+            });
         }
 
         public final void Forward()
         {
-            _controller.getTransportControls().sendCustomAction("Forward", new Bundle());
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Forward();
+                }
+            });
         }
 
         public final void Backward()
         {
-            _controller.getTransportControls().sendCustomAction("Backward", new Bundle());
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Backward();
+                }
+            });
         }
 
-        public final void Seek(long position)
+        public final void Seek(final long position)
         {
-            _controller.getTransportControls().seekTo(position);
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.Seek((int) position * 1000);
+                }
+            });
         }
 
-        public final void SwitchTrack(int uid)
+        public final void SwitchTrack(final int uid)
         {
-            Bundle bTrack = new Bundle();
-            bTrack.putInt("uid", uid);
-            _controller.getTransportControls().sendCustomAction("SwitchTrack", bTrack);
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SwitchTrack(uid);
+                }
+            });
         }
 
         public final double GetCurrentPosition()
@@ -895,17 +2494,265 @@ public final class StreamingAudioService
             }
         }
 
-        public void SetPlaylist(Track[] tracks)
+        // The array is handed over to the service, don't modify it after calling this
+        public void SetPlaylist(final Track[] tracks)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetPlaylist(tracks);
+                }
+            });
+        }
+
+        // Only the inserted tracks are sent. An index of -1 appends.
+        public final void InsertTracks(final int index, final Track[] tracks)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.InsertTracks(index, tracks);
+                }
+            });
+        }
+
+        public final void AppendTracks(Track[] tracks)
+        {
+            InsertTracks(-1, tracks);
+        }
+
+        // The playlist is 'count' tracks with uids from firstUID up. Pages of them are
+        // asked for through OnTracksRequested.
+        public final void SetPlaylistProvider(final int firstUID, final int count)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetPlaylistProvider(firstUID, count);
+                }
+            });
+        }
+
+        public final void ProvideTracks(final Track[] tracks)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.ProvideTracks(tracks);
+                }
+            });
+        }
+
+        public final void RemoveTracks(final int index, final int count)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.RemoveTracks(index, count);
+                }
+            });
+        }
+
+        public final void MoveTrack(final int from, final int to)
         {
-            Bundle bTrack = new Bundle();
-            bTrack.setClassLoader(Track.class.getClassLoader());
-            bTrack.putParcelableArray("tracks", tracks);
-            _controller.getTransportControls().sendCustomAction("SetPlaylist", bTrack);
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.MoveTrack(from, to);
+                }
+            });
         }
 
         public final void ClearHistory()
         {
-            _controller.getTransportControls().sendCustomAction("ClearHistory", new Bundle());
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.ClearHistory();
+                }
+            });
+        }
+
+        public final void SetGapless(final boolean enabled)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetGapless(enabled);
+                }
+            });
+        }
+
+        public final void SetCrossfade(final int durationMs)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetCrossfade(durationMs);
+                }
+            });
+        }
+
+        public final void SetShuffle(final boolean shuffle)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetShuffle(shuffle);
+                }
+            });
+        }
+
+        public final void SetRepeatMode(final int mode)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetRepeatMode(mode);
+                }
+            });
+        }
+
+        public final void SetRetryBudget(final int budget)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetRetryBudget(budget);
+                }
+            });
+        }
+
+        // 0 stops the progress updates
+        public final void SetProgressInterval(final int intervalMs)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetProgressInterval(intervalMs);
+                }
+            });
+        }
+
+        public final void SetHistoryDepth(final int depth)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service.SetHistoryDepth(depth);
+                }
+            });
+        }
+
+        public final void SetArtworkTimeouts(final int connectTimeoutMs, final int readTimeoutMs)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service._artworkLoader.SetTimeouts(connectTimeoutMs, readTimeoutMs);
+                }
+            });
+        }
+
+        public final void Download(final String url)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    if (ArtworkMediaNotification.IsRemoteFile(url))
+                    {
+                        _service._downloads.Download(url);
+                    }
+                }
+            });
+        }
+
+        // Keeps what was downloaded so far, downloading again resumes from there
+        public final void CancelDownload(final String url)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service._downloads.Cancel(url);
+                }
+            });
+        }
+
+        public final void RemoveDownload(final String url)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service._downloads.Remove(url);
+                }
+            });
+        }
+
+        // These are read on the app's thread. At worst they miss a change that is still
+        // on its way to the engine thread.
+
+        public final int GetRetryBudget()
+        {
+            return _service._retryBudget;
+        }
+
+        public final int GetHistoryDepth()
+        {
+            return _service._queue.HistoryDepth();
+        }
+
+        public final int GetDownloadConcurrency()
+        {
+            OfflineDownloads downloads = _service._downloads;
+            return downloads != null ? downloads.Concurrency() : DEFAULT_DOWNLOAD_CONCURRENCY;
+        }
+
+        public final void SetDownloadConcurrency(final int concurrency)
+        {
+            Post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    _service._downloads.SetConcurrency(concurrency);
+                }
+            });
         }
 
         @Override
@@ -915,16 +2762,81 @@ public final class StreamingAudioService
             _lastPlayerState = state;
         }
 
-        @Override
-        public void onSessionEvent(String event, Bundle extras)
+        // The service calls these on the engine thread, Uno gets them on the main thread
+
+        final void DispatchCurrentTrackChanged(final Track track)
         {
-            super.onExtrasChanged(extras);
-            extras.setClassLoader(Track.class.getClassLoader());
-            if (event.equals("trackChanged"))
+            _mainHandler.post(new Runnable()
             {
-                _currentTrack = (Track)extras.getParcelable("track");
-                OnCurrentTrackChanged(_currentTrack);
-            }
+                @Override
+                public void run()
+                {
+                    _currentTrack = track;
+                    OnCurrentTrackChanged(track);
+                }
+            });
+        }
+
+        final void DispatchStatusChanged(final int state)
+        {
+            _mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OnInternalStatusChanged(state);
+                }
+            });
+        }
+
+        final void DispatchProgressChanged(final int positionMs, final int durationMs)
+        {
+            _mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OnProgressChanged(positionMs, durationMs);
+                }
+            });
+        }
+
+        final void DispatchTracksRequested(final int start, final int count)
+        {
+            _mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OnTracksRequested(start, count);
+                }
+            });
+        }
+
+        // Called from the download threads
+
+        final void DispatchDownloadProgress(final String url, final long downloadedBytes, final long totalBytes)
+        {
+            _mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OnDownloadProgress(url, downloadedBytes, totalBytes);
+                }
+            });
+        }
+
+        final void DispatchDownloadFinished(final String url, final boolean succeeded)
+        {
+            _mainHandler.post(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    OnDownloadFinished(url, succeeded);
+                }
+            });
         }
 
         public final double GetCurrentTrackDuration()
@@ -0,0 +1,40 @@
+package com.fuse.StreamingPlayer;
+
+/**
+ * Estimates the download throughput from the audio we stream.
+ *
+ * The caching proxy reports how many bytes it read from the origin and how long it
+ * spent waiting for them. Samples are smoothed with an exponentially weighted moving
+ * average so one slow chunk does not make us drop quality straight away.
+ */
+public final class ThroughputEstimator
+{
+    // Too little data says more about latency than throughput
+    static final long MIN_SAMPLE_BYTES = 64 * 1024;
+    static final double SMOOTHING = 0.3;
+
+    private final PlaybackMetrics _metrics;
+    private double _kbps = -1;
+
+    public ThroughputEstimator(PlaybackMetrics metrics)
+    {
+        _metrics = metrics;
+    }
+
+    public synchronized void AddSample(long bytes, long durationMs)
+    {
+        if (bytes < MIN_SAMPLE_BYTES || durationMs <= 0)
+        {
+            return;
+        }
+        double kbps = (bytes * 8.0) / durationMs; // bits per ms == kbits per second
+        _kbps = _kbps < 0 ? kbps : (SMOOTHING * kbps + (1 - SMOOTHING) * _kbps);
+        _metrics.Set("abr.throughputKbps", Math.round(_kbps));
+    }
+
+    // -1 until we have measured anything
+    public synchronized double EstimateKbps()
+    {
+        return _kbps;
+    }
+}
@@ -3,6 +3,8 @@ package com.fuse.StreamingPlayer;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.util.ArrayList;
+
 public class Track implements Parcelable {
     public final int UID;
     public final String Name;
@@ -11,6 +13,11 @@ public class Track implements Parcelable {
     public final String ArtworkUrl;
     public final double Duration;
 
+    // Bitrate of Url in kbps, 0 if unknown. Variants are the same audio at other bitrates.
+    public int Bitrate = 0;
+    public final ArrayList<String> VariantUrls = new ArrayList<>();
+    public final ArrayList<Integer> VariantBitrates = new ArrayList<>();
+
     public Track(int uid,
                  String name,
                  String artist,
@@ -25,6 +32,17 @@ public class Track implements Parcelable {
         this.Duration = duration;
     }
 
+    public void AddVariant(String url, int bitrateKbps)
+    {
+        VariantUrls.add(url);
+        VariantBitrates.add(bitrateKbps);
+    }
+
+    public boolean HasVariants()
+    {
+        return VariantUrls.size() > 0;
+    }
+
     // This lot was generated by Android Studio.. that's kinda cool
     protected Track(Parcel in)
     {
@@ -34,6 +52,12 @@ public class Track implements Parcelable {
         Url = in.readString();
         ArtworkUrl = in.readString();
         Duration = in.readDouble();
+        Bitrate = in.readInt();
+        int variants = in.readInt();
+        for (int i = 0; i < variants; i++)
+        {
+            AddVariant(in.readString(), in.readInt());
+        }
     }
 
     public static final Creator<Track> CREATOR = new Creator<Track>()
@@ -66,5 +90,12 @@ public class Track implements Parcelable {
         parcel.writeString(Url);
         parcel.writeString(ArtworkUrl);
         parcel.writeDouble(Duration);
+        parcel.writeInt(Bitrate);
+        parcel.writeInt(VariantUrls.size());
+        for (int v = 0; v < VariantUrls.size(); v++)
+        {
+            parcel.writeString(VariantUrls.get(v));
+            parcel.writeInt(VariantBitrates.get(v));
+        }
     }
 }